@@ -0,0 +1,21 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// 每条命令一个 JFR 事件，持续时间就是命令的耗时；只有 JFR 正在录制时才真正写出
+@Name("minidos.Command")
+@Label("MiniDOS 命令")
+@Category("MiniDOS")
+@Description("执行一条 MiniDOS 命令")
+class CommandEvent extends jdk.jfr.Event {
+
+    @Label("命令")
+    String command;
+
+    @Label("整行")
+    String line;
+
+    @Label("出错")
+    boolean failed;
+}
@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+文件夹拷贝的流水线。
+调用线程负责遍历源文件夹，并按遍历顺序在目的地创建文件夹；每遇到一个文件就交给固定大小的工作线程池并发拷贝。
+大量小文件时耗时主要在打开、创建、关闭上，多个文件同时进行才能把磁盘用满。
+提交前先拿信号量，同时在途的文件数有上限，遍历再快内存也不会涨。
+超过阈值的大文件单独处理：先把目标文件设成最终长度，再切成若干段，由另一个线程池的多个线程各自打开通道、按位置并发拷贝。
+文件夹和大文件的拷贝都写拷贝日志（CopyJournal），中途终止后可以续拷。
+同步模式（/sync）下逐个文件比较大小和修改时间（或内容摘要），只拷贝新增或变化的文件，可选删除目的地中多余的部分；
+修改时间相差不超过容差就算相同，容差默认取两边文件系统中较粗的时间精度（FAT 只记到 2 秒），否则每次同步都会重拷；
+重新同步本身就能从中断处继续，所以不写拷贝日志。
+*/
+class CopyEngine {
+
+    private final int workers;
+    private final ExecutorService pool;
+    // 大文件的分段拷贝：不小于 largeThreshold 字节的文件按 chunkSize 分段，用 chunkThreads 个线程拷贝
+    private final long largeThreshold;
+    private final long chunkSize;
+    private final int chunkThreads;
+    // 分段任务单独一个线程池，拷贝线程等待分段完成时不会占满自己的线程池而死锁
+    private final ExecutorService chunkPool;
+    // 同步时删除目的地中多余的部分，不占用公共线程池
+    private final ForkJoinPool deletePool;
+
+    CopyEngine(int workers, long large_threshold, long chunk_size, int chunk_threads) {
+        this.workers = workers;
+        this.pool = fixed_pool(workers, "minidos-copy");
+        this.largeThreshold = large_threshold;
+        this.chunkSize = chunk_size;
+        this.chunkThreads = chunk_threads;
+        this.chunkPool = fixed_pool(chunk_threads, "minidos-chunk");
+        this.deletePool = new ForkJoinPool(workers);
+    }
+
+    private static ExecutorService fixed_pool(int threads, String name) {
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    int workers() {
+        return this.workers;
+    }
+
+    void shutdown() {
+        this.pool.shutdown();
+        this.chunkPool.shutdown();
+        this.deletePool.shutdown();
+    }
+
+    // 拷贝单个文件，大文件写拷贝日志
+    Progress copy_file(Path src, Path des, CopyOptions options) throws IOException {
+        return copy_file(src, des, options, new Progress());
+    }
+
+    // progress 由调用方提供时可以在拷贝过程中读取进度，也可以取消
+    Progress copy_file(Path src, Path des, CopyOptions options, Progress progress) throws IOException {
+        Metrics.stat();
+        BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+        long size = attrs.size();
+        if (options.sync && !sync_changed(src, attrs, des, options, modify_window(src, des, options), progress)) {
+            progress.unchanged.increment();
+            return progress;
+        }
+        if (size < this.largeThreshold || options.sync) {
+            copy_one(src, des, size, options.keepAttrs, progress, null, "");
+            return progress;
+        }
+
+        CopyJournal journal = options.resume ? CopyJournal.resume(src, des) : CopyJournal.create(src, des);
+        try {
+            copy_one(src, des, size, options.keepAttrs, progress, journal, "");
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        journal.finish();
+        return progress;
+    }
+
+    // 按文件大小选择整体拷贝或分段并行拷贝；journal 不为 null 时跳过上次已完成的文件并记录本次完成的文件
+    private void copy_one(Path src, Path des, long size, boolean keep_attrs, Progress progress,
+                          CopyJournal journal, String rel) throws IOException {
+        if (journal != null && journal.file_done(rel, size, des)) {
+            progress.skipped.increment();
+            return;
+        }
+
+        progress.throttle_op();
+        if (size < this.largeThreshold) {
+            progress.add_file(FileCopier.copy(src, des, keep_attrs, progress));
+        } else {
+            copy_chunked(src, des, size, progress, journal, rel);
+            if (keep_attrs) {
+                FileCopier.copy_attrs(src, des);
+            }
+            Metrics.file();
+            progress.files.increment();
+        }
+
+        if (journal != null) {
+            journal.record_file(rel, size);
+        }
+    }
+
+    // 分段并行拷贝一个大文件：每个线程打开自己的一对通道，轮流领取下一段，按位置读写
+    private void copy_chunked(Path src, Path des, long size, Progress progress,
+                              CopyJournal journal, String rel) throws IOException {
+        // 先设定目标文件的最终长度，各段直接写到自己的位置；续拷时长度不变，已经写好的段保留
+        try (RandomAccessFile raf = new RandomAccessFile(des.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+
+        long chunks = (size + this.chunkSize - 1) / this.chunkSize;
+        AtomicLong next = new AtomicLong();
+        ArrayList<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < Math.min(this.chunkThreads, chunks); i++) {
+            tasks.add(this.chunkPool.submit(() -> {
+                try (
+                        FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                        FileChannel out = FileChannel.open(des, StandardOpenOption.WRITE)
+                ) {
+                    for (long chunk = next.getAndIncrement(); chunk < chunks; chunk = next.getAndIncrement()) {
+                        long position = chunk * this.chunkSize;
+                        long count = Math.min(this.chunkSize, size - position);
+                        if (journal != null && journal.chunk_done(rel, position, count)) {
+                            continue;
+                        }
+                        progress.check();
+                        long end = FileCopier.copy_range(in, out, position, count, progress);
+                        if (end < position + count) {
+                            throw new IOException("源文件在拷贝过程中变短: " + src);
+                        }
+                        // 这一段落盘之后才记进日志
+                        if (journal != null) {
+                            out.force(false);
+                            journal.record_chunk(rel, position, count);
+                        }
+                        progress.add_bytes(count);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        IOException error = null;
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = new IOException("拷贝被中断");
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // 把 src 整个文件夹拷贝成 des，出错时停止提交新文件，等在途的拷贝结束后抛出第一个错误，并保留拷贝日志
+    Progress copy_tree(Path src, Path des, CopyOptions options) throws IOException {
+        return copy_tree(src, des, options, new Progress());
+    }
+
+    Progress copy_tree(Path src, Path des, CopyOptions options, Progress progress) throws IOException {
+        CopyJournal journal = null;
+        if (!options.sync) {
+            journal = options.resume ? CopyJournal.resume(src, des) : CopyJournal.create(src, des);
+        }
+        Run run = new Run(des, options, journal, progress, options.sync ? modify_window(src, des, options) : 0);
+        try {
+            try {
+                run.walk(src, des);
+            } finally {
+                run.drain();
+            }
+
+            if (run.error != null) {
+                throw run.error;
+            }
+
+            // 文件夹的修改时间要等里面的文件都拷贝完再设置，由深到浅
+            if (options.keepAttrs) {
+                for (int i = run.dirs.size() - 1; i >= 0; i -= 2) {
+                    FileCopier.copy_attrs(run.dirs.get(i - 1), run.dirs.get(i));
+                }
+            }
+        } catch (IOException e) {
+            if (journal != null) {
+                journal.close();
+            }
+            throw e;
+        }
+
+        if (journal != null) {
+            journal.finish();
+        }
+        return run.progress;
+    }
+
+    // 同步模式下判断目标文件是否需要重新拷贝
+    private boolean sync_changed(Path src, BasicFileAttributes attrs, Path des, CopyOptions options, long window,
+                                 Progress progress) throws IOException {
+        if (!options.hash) {
+            return changed(attrs, des, options, window, progress);
+        }
+        // 比较摘要时，大小不同或目标不存在才直接判定为变化
+        BasicFileAttributes des_attrs = TreeScanner.read_attrs(des);
+        if (des_attrs == null || des_attrs.isDirectory() || des_attrs.size() != attrs.size()) {
+            return changed(attrs, des, options, window, progress);
+        }
+        return changed_content(src, attrs, des);
+    }
+
+    // 按大小和修改时间判断，修改时间相差不超过 window 纳秒算相同
+    private boolean changed(BasicFileAttributes src_attrs, Path des, CopyOptions options, long window,
+                            Progress progress) throws IOException {
+        BasicFileAttributes des_attrs = TreeScanner.read_attrs(des);
+        if (des_attrs == null) {
+            return true;
+        }
+        if (des_attrs.isDirectory()) {
+            if (!options.purge) {
+                throw new IOException("目的地中同名的是文件夹，加开关/purge才能替换: " + des);
+            }
+            remove(des, progress);
+            return true;
+        }
+        if (des_attrs.size() != src_attrs.size()) {
+            return true;
+        }
+        long diff = des_attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) - src_attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        return Math.abs(diff) > window;
+    }
+
+    // 修改时间的容差（纳秒）：给出了就用给出的，否则取源和目的地两个文件系统中较粗的精度
+    private static long modify_window(Path src, Path des, CopyOptions options) {
+        if (options.modifyWindow >= 0) {
+            return TimeUnit.MILLISECONDS.toNanos(options.modifyWindow);
+        }
+        return Math.max(time_precision(src), time_precision(des));
+    }
+
+    /*
+    文件所在文件系统记录修改时间的精度（纳秒），按文件系统类型判断；目的地可能还不存在，取最近的已存在的上级。
+    FAT 系列 2 秒，HFS+ 1 秒，NTFS 100 纳秒；其余按 1 微秒，有的平台上 Java 设置修改时间只精确到微秒。
+    */
+    private static long time_precision(Path path) {
+        Path existing = path.toAbsolutePath();
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        String type = "";
+        try {
+            if (existing != null) {
+                FileStore store = Files.getFileStore(existing);
+                type = store.type().toLowerCase();
+            }
+        } catch (IOException | SecurityException e) {
+            // 判断不了类型时按默认精度
+        }
+        if (type.contains("fat") || type.equals("msdos")) {
+            return TimeUnit.SECONDS.toNanos(2);
+        }
+        if (type.startsWith("hfs")) {
+            return TimeUnit.SECONDS.toNanos(1);
+        }
+        if (type.contains("ntfs") || type.equals("fuseblk")) {
+            return 100;
+        }
+        return TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    // 比较内容摘要；内容相同只是修改时间不同时，只改修改时间
+    private boolean changed_content(Path src, BasicFileAttributes src_attrs, Path des) throws IOException {
+        if (!FileHasher.same_content(src, des)) {
+            return true;
+        }
+        Files.setLastModifiedTime(des, src_attrs.lastModifiedTime());
+        return false;
+    }
+
+    // 同步时删除目的地中多余或类型不符的文件（夹）；删掉的项计入 progress 的 removed，跟随它取消和限速
+    private void remove(Path path, Progress progress) throws IOException {
+        List<String> failures = new DeleteEngine(this.deletePool, progress.purge()).delete(path);
+        progress.check();
+        if (!failures.isEmpty()) {
+            throw new IOException("无法删除 " + failures.get(0));
+        }
+    }
+
+    // 一次拷贝的状态
+    private class Run {
+        final Progress progress;
+        final Path root;
+        final CopyOptions options;
+        final CopyJournal journal;
+        // 同步时修改时间的容差（纳秒）
+        final long window;
+        final Semaphore inflight = new Semaphore(CopyEngine.this.workers * 4);
+        // 需要保留属性时，按创建顺序记录 源, 目的地 成对的文件夹
+        final ArrayList<Path> dirs = new ArrayList<>();
+        volatile IOException error;
+
+        Run(Path root, CopyOptions options, CopyJournal journal, Progress progress, long window) {
+            this.progress = progress;
+            this.root = root;
+            this.options = options;
+            this.journal = journal;
+            this.window = window;
+        }
+
+        void walk(Path src, Path des) throws IOException {
+            try {
+                Files.createDirectory(des);
+            } catch (FileAlreadyExistsException e) {
+                if (!Files.isDirectory(des)) {
+                    // 同步并且允许删除时，用文件夹替换目的地中同名的文件
+                    if (!this.options.sync || !this.options.purge) {
+                        throw new IOException("无法创建目标目录: " + des);
+                    }
+                    remove(des, this.progress);
+                    Files.createDirectory(des);
+                }
+            }
+            if (this.options.keepAttrs) {
+                this.dirs.add(src);
+                this.dirs.add(des);
+            }
+
+            boolean purge = this.options.sync && this.options.purge;
+            HashSet<String> names = purge ? new HashSet<>() : null;
+            Metrics.list();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(src)) {
+                for (Path child : children) {
+                    if (this.error != null) {
+                        return;
+                    }
+                    this.progress.check();
+                    String name = child.getFileName().toString();
+                    if (purge) {
+                        names.add(name);
+                    }
+                    BasicFileAttributes attrs = TreeScanner.read_attrs(child);
+                    Path target = des.resolve(name);
+                    if (attrs == null) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        walk(child, target);
+                    } else if (attrs.isRegularFile()) {
+                        submit(child, target, attrs);
+                    }
+                }
+            }
+
+            // 删除目的地中源里没有的文件（夹）
+            if (purge) {
+                Metrics.list();
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(des)) {
+                    for (Path child : children) {
+                        if (!names.contains(child.getFileName().toString())) {
+                            remove(child, this.progress);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void submit(Path src, Path des, BasicFileAttributes attrs) throws IOException {
+            try {
+                this.inflight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("拷贝被中断");
+            }
+
+            CopyEngine.this.pool.execute(() -> {
+                try {
+                    if (this.error != null) {
+                        return;
+                    }
+                    this.progress.check();
+                    if (this.options.sync && !sync_changed(src, attrs, des, this.options, this.window, this.progress)) {
+                        this.progress.unchanged.increment();
+                        return;
+                    }
+                    copy_one(src, des, attrs.size(), this.options.keepAttrs, this.progress, this.journal,
+                            this.root.relativize(des).toString());
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    this.inflight.release();
+                }
+            });
+        }
+
+        private synchronized void fail(IOException e) {
+            if (this.error == null) {
+                this.error = e;
+            }
+        }
+
+        // 等所有在途的文件拷贝结束
+        void drain() {
+            int permits = CopyEngine.this.workers * 4;
+            this.inflight.acquireUninterruptibly(permits);
+            this.inflight.release(permits);
+        }
+    }
+}
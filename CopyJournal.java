@@ -0,0 +1,145 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+拷贝日志：只追加的二进制文件，放在拷贝目标旁边（.<目标名>.minidos-journal），记录已经完成的文件和大文件里已经落盘的段。
+拷贝中途被终止时日志留下，copy /resume 读回日志，跳过已完成的文件，大文件只补拷还没完成的段；拷贝成功后删除日志。
+小文件的记录每 64 条写出一次，进程被杀时最多重拷这些文件；大文件的段先 force 到磁盘再写记录并立即写出。
+*/
+class CopyJournal {
+
+    private static final int MAGIC = 0x4D444A31; // "MDJ1"
+    private static final byte FILE_DONE = 'F';
+    private static final byte CHUNK_DONE = 'C';
+    private static final int FLUSH_EVERY = 64;
+
+    private final Path path;
+    private final DataOutputStream out;
+    // 续拷时从旧日志读回的记录
+    private final HashMap<String, Long> doneFiles = new HashMap<>();
+    private final HashSet<String> doneChunks = new HashSet<>();
+    private int pending;
+
+    private CopyJournal(Path path, boolean append) throws IOException {
+        this.path = path;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)));
+    }
+
+    static Path path_for(Path target) {
+        return target.resolveSibling("." + target.getFileName() + ".minidos-journal");
+    }
+
+    // 开始一次新的拷贝，覆盖旧日志
+    static CopyJournal create(Path src, Path target) throws IOException {
+        CopyJournal journal = new CopyJournal(path_for(target), false);
+        journal.out.writeInt(MAGIC);
+        journal.out.writeUTF(src.toString());
+        journal.out.flush();
+        return journal;
+    }
+
+    // 读回旧日志后继续追加；日志不存在或源路径不一致时报错
+    static CopyJournal resume(Path src, Path target) throws IOException {
+        Path path = path_for(target);
+        if (!Files.isRegularFile(path)) {
+            throw new IOException("没有找到可以继续的拷贝记录：" + path);
+        }
+
+        HashMap<String, Long> files = new HashMap<>();
+        HashSet<String> chunks = new HashSet<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(src.toString())) {
+                throw new IOException("拷贝记录与源路径不一致：" + path);
+            }
+            // 最后一条记录可能只写了一半，读到哪里算哪里
+            try {
+                while (true) {
+                    byte kind = in.readByte();
+                    String rel = in.readUTF();
+                    long a = in.readLong();
+                    if (kind == FILE_DONE) {
+                        files.put(rel, a);
+                    } else if (kind == CHUNK_DONE) {
+                        chunks.add(chunk_key(rel, a, in.readLong()));
+                    } else {
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                // 日志末尾
+            }
+        }
+
+        CopyJournal journal = new CopyJournal(path, true);
+        journal.doneFiles.putAll(files);
+        journal.doneChunks.addAll(chunks);
+        return journal;
+    }
+
+    private static String chunk_key(String rel, long offset, long length) {
+        return rel + '\0' + offset + '\0' + length;
+    }
+
+    int done_num() {
+        return this.doneFiles.size();
+    }
+
+    // 上次已经完成、且目标文件大小也对得上的文件可以跳过
+    boolean file_done(String rel, long size, Path target) {
+        Long done = this.doneFiles.get(rel);
+        if (done == null || done != size) {
+            return false;
+        }
+        try {
+            return Files.size(target) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean chunk_done(String rel, long offset, long length) {
+        return this.doneChunks.contains(chunk_key(rel, offset, length));
+    }
+
+    synchronized void record_file(String rel, long size) throws IOException {
+        this.out.writeByte(FILE_DONE);
+        this.out.writeUTF(rel);
+        this.out.writeLong(size);
+        if (++this.pending >= FLUSH_EVERY) {
+            this.out.flush();
+            this.pending = 0;
+        }
+    }
+
+    // 调用前这一段已经 force 到磁盘，记录立即写出
+    synchronized void record_chunk(String rel, long offset, long length) throws IOException {
+        this.out.writeByte(CHUNK_DONE);
+        this.out.writeUTF(rel);
+        this.out.writeLong(offset);
+        this.out.writeLong(length);
+        this.out.flush();
+        this.pending = 0;
+    }
+
+    // 拷贝失败时保留日志以便续拷
+    synchronized void close() throws IOException {
+        this.out.close();
+    }
+
+    // 拷贝成功后删除日志
+    void finish() throws IOException {
+        close();
+        Files.deleteIfExists(this.path);
+    }
+}
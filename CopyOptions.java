@@ -0,0 +1,20 @@
+// copy、move 命令的开关
+class CopyOptions {
+
+    // /a：保留修改时间和权限
+    boolean keepAttrs;
+    // /resume：根据拷贝日志继续上次中断的拷贝
+    boolean resume;
+    // /sync：增量同步，只拷贝新增或变化（大小、修改时间不同）的文件
+    boolean sync;
+    // /hash：同步时大小相同的文件再比较内容摘要，不看修改时间
+    boolean hash;
+    // 同步时修改时间相差不超过这么多毫秒算相同；-1 表示取源和目的地两个文件系统中较粗的时间精度
+    long modifyWindow = -1;
+    // /purge：同步时删除目的地中源里没有的文件（夹）
+    boolean purge;
+    // /o：目的地已有同名文件时覆盖
+    boolean overwrite;
+    // /plan：只做预检，列出要拷贝的量和全部冲突，不拷贝
+    boolean planOnly;
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+拷贝前的预检：写入任何字节之前，把源树和目的地各走一遍，列出全部冲突并统计要拷贝的量。
+每个源文件夹只把目的地对应的文件夹列举一次，名称放进 HashSet，子项是否冲突查一次哈希表即可，
+只有重名的项才再读目的地一侧的属性，分辨是覆盖同类文件还是文件和文件夹互相顶替。
+各子文件夹在 ForkJoin 线程池中并行检查。
+*/
+class CopyPlanner {
+
+    private final ForkJoinPool pool;
+
+    CopyPlanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    static class Plan {
+        final LongAdder files = new LongAdder();
+        final LongAdder dirs = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        // 目的地已有同名文件，拷贝会覆盖
+        final ConcurrentLinkedQueue<Path> overwrites = new ConcurrentLinkedQueue<>();
+        // 一边是文件、一边是文件夹，无法拷贝
+        final ConcurrentLinkedQueue<Path> clashes = new ConcurrentLinkedQueue<>();
+        // 读不了的源文件（夹）
+        final ConcurrentLinkedQueue<Path> unreadable = new ConcurrentLinkedQueue<>();
+        // 目的地所在文件系统的可用空间，读不到时为 -1
+        long usable = -1;
+
+        boolean fits() {
+            return this.usable < 0 || this.bytes.sum() <= this.usable;
+        }
+    }
+
+    // 预检把 src 拷贝成 target（target 是拷贝后的完整路径，不是它所在的文件夹）
+    Plan plan(Path src, Path target) throws IOException {
+        Plan plan = new Plan();
+        BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+        BasicFileAttributes target_attrs = target_attrs(target);
+        if (attrs.isDirectory()) {
+            if (target_attrs != null && !target_attrs.isDirectory()) {
+                plan.clashes.add(target);
+            } else {
+                this.pool.invoke(new PlanTask(src, target, target_attrs != null, plan));
+            }
+        } else {
+            plan.files.increment();
+            plan.bytes.add(attrs.size());
+            if (target_attrs != null) {
+                (target_attrs.isDirectory() ? plan.clashes : plan.overwrites).add(target);
+            }
+        }
+        plan.usable = usable_space(target);
+        return plan;
+    }
+
+    private static BasicFileAttributes target_attrs(Path target) {
+        try {
+            return Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    // 从目标往上找到第一个已经存在的文件夹，取它所在文件系统的可用空间
+    private static long usable_space(Path target) {
+        for (Path dir = target.toAbsolutePath(); dir != null; dir = dir.getParent()) {
+            if (Files.isDirectory(dir)) {
+                try {
+                    return Files.getFileStore(dir).getUsableSpace();
+                } catch (IOException | SecurityException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // 检查一个源文件夹；target_exists 为 false 时目的地整棵子树都是新建的，不用再列举
+    private static class PlanTask extends RecursiveAction {
+        private final Path src;
+        private final Path target;
+        private final boolean targetExists;
+        private final Plan plan;
+
+        PlanTask(Path src, Path target, boolean target_exists, Plan plan) {
+            this.src = src;
+            this.target = target;
+            this.targetExists = target_exists;
+            this.plan = plan;
+        }
+
+        @Override
+        protected void compute() {
+            this.plan.dirs.increment();
+
+            HashSet<String> existing = new HashSet<>();
+            if (this.targetExists) {
+                Metrics.list();
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(this.target)) {
+                    for (Path child : children) {
+                        existing.add(child.getFileName().toString());
+                    }
+                } catch (IOException | SecurityException e) {
+                    this.plan.unreadable.add(this.target);
+                }
+            }
+
+            List<PlanTask> subtasks = new ArrayList<>();
+            Metrics.list();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(this.src)) {
+                for (Path child : children) {
+                    BasicFileAttributes attrs = TreeScanner.read_attrs(child);
+                    if (attrs == null) {
+                        this.plan.unreadable.add(child);
+                        continue;
+                    }
+                    String name = child.getFileName().toString();
+                    Path target_child = this.target.resolve(name);
+                    BasicFileAttributes target_attrs = existing.contains(name) ? target_attrs(target_child) : null;
+
+                    if (attrs.isDirectory()) {
+                        if (target_attrs != null && !target_attrs.isDirectory()) {
+                            this.plan.clashes.add(target_child);
+                        } else {
+                            PlanTask task = new PlanTask(child, target_child, target_attrs != null, this.plan);
+                            task.fork();
+                            subtasks.add(task);
+                        }
+                    } else if (attrs.isRegularFile()) {
+                        this.plan.files.increment();
+                        this.plan.bytes.add(attrs.size());
+                        if (target_attrs != null) {
+                            (target_attrs.isDirectory() ? this.plan.clashes : this.plan.overwrites).add(target_child);
+                        }
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                this.plan.unreadable.add(this.src);
+            }
+
+            for (PlanTask task : subtasks) {
+                task.join();
+            }
+        }
+    }
+}
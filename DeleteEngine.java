@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+并行的级联删除。
+每个文件夹里的文件按批拆成任务并发删除，子文件夹各自成为一个任务；等它们全部删完，再删除文件夹本身，由下而上。
+删除失败的路径连同原因收集起来报告给用户；子项没删干净的文件夹不再尝试删除，也不重复报告。
+符号链接只删除链接本身，不跟进链接指向的文件夹。限速时每删除一项领取一个操作令牌。
+*/
+class DeleteEngine {
+
+    // 一个文件夹里的文件每多少个拆成一个任务
+    private static final int BATCH = 128;
+
+    private final ForkJoinPool pool;
+    // 每删掉一项（文件或文件夹）计一个文件；取消后不再删除新的项
+    private final Progress progress;
+
+    DeleteEngine(ForkJoinPool pool) {
+        this(pool, new Progress());
+    }
+
+    DeleteEngine(ForkJoinPool pool, Progress progress) {
+        this.pool = pool;
+        this.progress = progress;
+    }
+
+    // 删除文件或整个文件夹，返回删除失败的路径及原因，全部成功时为空
+    List<String> delete(Path path) {
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        this.pool.invoke(new DeleteTask(path, failures, this.progress));
+        if (this.progress.cancelled()) {
+            failures.add(path + "：已取消，只删除了一部分");
+        }
+        return new ArrayList<>(failures);
+    }
+
+    // 删除一个路径，已经不存在也算成功
+    private static boolean unlink(Path path, ConcurrentLinkedQueue<String> failures, Progress progress) {
+        if (progress.cancelled()) {
+            return false;
+        }
+        try {
+            progress.throttle_op();
+        } catch (IOException e) {
+            // 限速等待期间被取消
+            return false;
+        }
+        try {
+            if (Files.deleteIfExists(path)) {
+                Metrics.file();
+                progress.files.increment();
+            }
+            return true;
+        } catch (IOException | SecurityException e) {
+            Metrics.error();
+            failures.add(path + "：" + reason(e));
+            return false;
+        }
+    }
+
+    static String reason(Exception e) {
+        if (e instanceof AccessDeniedException || e instanceof SecurityException) {
+            return "没有权限";
+        }
+        if (e instanceof DirectoryNotEmptyException) {
+            return "文件夹非空";
+        }
+        // FileSystemException 的 getMessage() 里已经带着路径，只取原因
+        if (e instanceof FileSystemException && ((FileSystemException) e).getReason() != null) {
+            return ((FileSystemException) e).getReason();
+        }
+        return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+    }
+
+    // 删除一个文件或一棵子树，返回是否全部删除
+    private static class DeleteTask extends RecursiveTask<Boolean> {
+        private final Path path;
+        private final ConcurrentLinkedQueue<String> failures;
+        private final Progress progress;
+
+        DeleteTask(Path path, ConcurrentLinkedQueue<String> failures, Progress progress) {
+            this.path = path;
+            this.failures = failures;
+            this.progress = progress;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (this.progress.cancelled()) {
+                return false;
+            }
+            BasicFileAttributes attrs;
+            Metrics.stat();
+            try {
+                attrs = Files.readAttributes(this.path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException | SecurityException e) {
+                Metrics.error();
+                this.failures.add(this.path + "：" + reason(e));
+                return false;
+            }
+
+            if (!attrs.isDirectory()) {
+                return unlink(this.path, this.failures, this.progress);
+            }
+
+            ArrayList<RecursiveTask<Boolean>> subtasks = new ArrayList<>();
+            ArrayList<Path> batch = new ArrayList<>();
+            Metrics.list();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(this.path)) {
+                for (Path child : children) {
+                    BasicFileAttributes child_attrs = null;
+                    Metrics.stat();
+                    try {
+                        child_attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException | SecurityException e) {
+                        // 交给 DeleteTask 重新读取并报告
+                    }
+
+                    if (child_attrs != null && !child_attrs.isDirectory()) {
+                        batch.add(child);
+                        if (batch.size() == BATCH) {
+                            subtasks.add(fork_batch(batch));
+                            batch = new ArrayList<>();
+                        }
+                    } else {
+                        DeleteTask task = new DeleteTask(child, this.failures, this.progress);
+                        task.fork();
+                        subtasks.add(task);
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                Metrics.error();
+                this.failures.add(this.path + "：" + reason(e));
+                return false;
+            }
+
+            // 最后不满一批的文件在本线程直接删除
+            boolean ok = true;
+            for (Path file : batch) {
+                ok &= unlink(file, this.failures, this.progress);
+            }
+            for (int i = subtasks.size() - 1; i >= 0; i--) {
+                ok &= subtasks.get(i).join();
+            }
+
+            // 子项全部删除后再删文件夹本身
+            return ok && unlink(this.path, this.failures, this.progress);
+        }
+
+        private RecursiveTask<Boolean> fork_batch(ArrayList<Path> files) {
+            RecursiveTask<Boolean> task = new RecursiveTask<>() {
+                @Override
+                protected Boolean compute() {
+                    boolean ok = true;
+                    for (Path file : files) {
+                        ok &= unlink(file, DeleteTask.this.failures, DeleteTask.this.progress);
+                    }
+                    return ok;
+                }
+            };
+            task.fork();
+            return task;
+        }
+    }
+}
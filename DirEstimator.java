@@ -0,0 +1,327 @@
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+dir /fast：在限定的时间内给出每一项的统计，来不及算完的用抽样估计。
+前一半时间对各子文件夹做精确统计，超时就放弃，但已经列举过的文件夹和已经算完的子树都留下；
+后一半时间对没算完的子文件夹做随机探测（Knuth 的树规模估计）：从顶层往下，每层在还没算完的子文件夹中随机选一个走下去，
+本层的文件数、字节数和子文件夹数乘以沿途各层候选数之积，已经算完的子树直接按精确值乘以同样的权重计入。
+每次探测都是总量的无偏估计，多次探测取平均，用样本标准差给出 95% 置信区间的半宽。
+深度只能给出探测到的下界。每个没算完的子文件夹至少探测一次，子项极多时可能略微超出时限。
+/refine 在后台把估计的项精确统计完（refine），估计时列举过的文件夹和算完的子树直接沿用，每个文件夹之前检查取消。
+*/
+class DirEstimator {
+
+    // 一项的结果；exact 为 true 时各误差为 0
+    static class Estimate {
+        final String name;
+        final Path path;
+        final BasicFileAttributes attrs;
+        boolean exact;
+        int depth = 1;
+        double dirs;
+        double files;
+        double size;
+        // 95% 置信区间的半宽，探测不足两次时为 -1
+        double dirsError;
+        double filesError;
+        double sizeError;
+        int probes;
+        // 没算完时的估计状态，refine 时沿用
+        private Child child;
+
+        Estimate(String name, Path path, BasicFileAttributes attrs) {
+            this.name = name;
+            this.path = path;
+            this.attrs = attrs;
+        }
+
+        boolean dir() {
+            return this.attrs != null && this.attrs.isDirectory();
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    DirEstimator(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // 按列举顺序返回 dir 的每个子项
+    List<Estimate> estimate(Path dir, long budget_millis) {
+        long start = System.nanoTime();
+        long exact_deadline = start + budget_millis * 500_000L;
+        long deadline = start + budget_millis * 1_000_000L;
+
+        ArrayList<Estimate> result = new ArrayList<>();
+        ArrayList<Child> pending = new ArrayList<>();
+        Metrics.list();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path path : children) {
+                BasicFileAttributes attrs = TreeScanner.read_attrs(path);
+                Estimate estimate = new Estimate(path.getFileName().toString(), path, attrs);
+                result.add(estimate);
+                if (attrs != null && attrs.isDirectory()) {
+                    pending.add(new Child(estimate));
+                } else {
+                    set_exact(estimate, new TreeScanner().scan(path, attrs));
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            // 目录为空或无权限访问
+        }
+
+        // 第一阶段：精确统计，算完的直接定下来
+        AtomicLong ticket = new AtomicLong();
+        run(() -> {
+            for (long t = ticket.getAndIncrement(); t < pending.size() && System.nanoTime() < exact_deadline; t = ticket.getAndIncrement()) {
+                Child child = pending.get((int) t);
+                synchronized (child) {
+                    TreeStats stats = child.exact(child.estimate.path, exact_deadline);
+                    if (stats != null) {
+                        set_exact(child.estimate, stats);
+                    }
+                }
+            }
+        });
+
+        // 第二阶段：轮流探测没算完的子文件夹，第一轮每个都要探测到
+        ArrayList<Child> unfinished = new ArrayList<>();
+        for (Child child : pending) {
+            if (!child.estimate.exact) {
+                unfinished.add(child);
+            }
+        }
+        if (!unfinished.isEmpty()) {
+            AtomicLong round = new AtomicLong();
+            run(() -> {
+                for (long t = round.getAndIncrement(); t < unfinished.size() || System.nanoTime() < deadline; t = round.getAndIncrement()) {
+                    Child child = unfinished.get((int) (t % unfinished.size()));
+                    synchronized (child) {
+                        child.probe();
+                    }
+                }
+            });
+            for (Child child : unfinished) {
+                child.finish();
+            }
+        }
+        return result;
+    }
+
+    /*
+    把估计出来的一项精确统计完：估计时列举过的文件夹和已经算完的子树不再访问磁盘，其余的在 pool 中并行遍历（为 null 时在本线程）。
+    每个文件夹之前检查 progress，取消时抛出异常。
+    */
+    static TreeStats refine(Estimate estimate, ForkJoinPool pool, Progress progress) throws IOException {
+        Child child = estimate.child;
+        RefineTask task = new RefineTask(child, estimate.path, progress, pool != null);
+        TreeStats stats = pool == null ? task.compute() : pool.invoke(task);
+        progress.check();
+        // 估计状态用完就放掉，子树很大时它占的内存不少
+        estimate.child = null;
+        return stats;
+    }
+
+    // 并行模式下每个线程跑一份 worker，共同领取任务；顺序模式下在本线程跑一份
+    private void run(Runnable worker) {
+        if (this.pool == null) {
+            worker.run();
+            return;
+        }
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < this.pool.getParallelism(); i++) {
+            tasks.add(this.pool.submit(worker));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    private static void set_exact(Estimate estimate, TreeStats stats) {
+        estimate.exact = true;
+        estimate.depth = stats.depth;
+        estimate.dirs = stats.dirNum;
+        estimate.files = stats.fileNum;
+        estimate.size = stats.size;
+    }
+
+    // 一个子文件夹的估计状态，同一时间只有一个线程操作
+    private static class Child {
+        final Estimate estimate;
+        // 列举过的文件夹和已经算完的子树，探测和 refine 时直接使用；refine 会从多个线程读取
+        private final ConcurrentHashMap<Path, DirLevel> levels = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Path, TreeStats> done = new ConcurrentHashMap<>();
+        private final Sample dirs = new Sample();
+        private final Sample files = new Sample();
+        private final Sample size = new Sample();
+        private int depth = 1;
+
+        Child(Estimate estimate) {
+            this.estimate = estimate;
+            estimate.child = this;
+        }
+
+        private DirLevel level(Path dir) {
+            DirLevel level = this.levels.get(dir);
+            if (level == null) {
+                level = TreeScanner.list_level(dir);
+                this.levels.put(dir, level);
+            }
+            return level;
+        }
+
+        // 深度优先的精确统计，超时返回 null；算完的子树记进 done
+        TreeStats exact(Path dir, long deadline) {
+            if (System.nanoTime() >= deadline) {
+                return null;
+            }
+            DirLevel level = level(dir);
+            TreeStats stats = level.stats();
+            for (int i = 0; i < level.subdirs.size(); i++) {
+                TreeStats child = exact(dir.resolve(level.subdirs.get(i)), deadline);
+                if (child == null) {
+                    return null;
+                }
+                stats.add_dir(child);
+            }
+            this.done.put(dir, stats);
+            return stats;
+        }
+
+        // 一次随机探测
+        void probe() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double weight = 1;
+            double dirs = 0;
+            double files = 0;
+            double size = 0;
+            Path node = this.estimate.path;
+            for (int depth = 1; ; depth++) {
+                DirLevel level = level(node);
+                files += weight * level.fileNum;
+                size += weight * level.size;
+                if (level.fileNum > 0 || level.other) {
+                    this.depth = Math.max(this.depth, depth + 1);
+                }
+
+                // 已经算完的子文件夹按精确值计入，没算完的留作候选
+                ArrayList<Path> unknown = new ArrayList<>();
+                for (int i = 0; i < level.subdirs.size(); i++) {
+                    Path child = node.resolve(level.subdirs.get(i));
+                    dirs += weight;
+                    TreeStats known = this.done.get(child);
+                    if (known != null) {
+                        dirs += weight * known.dirNum;
+                        files += weight * known.fileNum;
+                        size += weight * known.size;
+                        this.depth = Math.max(this.depth, depth + known.depth);
+                    } else {
+                        unknown.add(child);
+                        this.depth = Math.max(this.depth, depth + 1);
+                    }
+                }
+                if (unknown.isEmpty()) {
+                    break;
+                }
+                weight *= unknown.size();
+                node = unknown.get(random.nextInt(unknown.size()));
+            }
+            this.dirs.add(dirs);
+            this.files.add(files);
+            this.size.add(size);
+        }
+
+        void finish() {
+            Estimate e = this.estimate;
+            e.depth = this.depth;
+            e.probes = this.size.n;
+            e.dirs = this.dirs.mean;
+            e.files = this.files.mean;
+            e.size = this.size.mean;
+            e.dirsError = this.dirs.error();
+            e.filesError = this.files.error();
+            e.sizeError = this.size.error();
+        }
+    }
+
+    // refine 的一个文件夹；已取消时返回空统计，由 refine 抛出异常
+    private static class RefineTask extends RecursiveTask<TreeStats> {
+        private final Child child;
+        private final Path dir;
+        private final Progress progress;
+        private final boolean parallel;
+
+        RefineTask(Child child, Path dir, Progress progress, boolean parallel) {
+            this.child = child;
+            this.dir = dir;
+            this.progress = progress;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected TreeStats compute() {
+            TreeStats known = this.child.done.get(this.dir);
+            if (known != null) {
+                return known;
+            }
+            if (this.progress.cancelled()) {
+                return new TreeStats();
+            }
+
+            // 估计时列举过的直接用，用过就不再需要
+            DirLevel level = this.child.levels.remove(this.dir);
+            if (level == null) {
+                level = TreeScanner.list_level(this.dir);
+            }
+            TreeStats stats = level.stats();
+            ArrayList<RefineTask> subtasks = new ArrayList<>();
+            for (String name : level.subdirs) {
+                RefineTask task = new RefineTask(this.child, this.dir.resolve(name), this.progress, this.parallel);
+                if (this.parallel) {
+                    task.fork();
+                    subtasks.add(task);
+                } else {
+                    stats.add_dir(task.compute());
+                }
+            }
+            for (RefineTask task : subtasks) {
+                stats.add_dir(task.join());
+            }
+            return stats;
+        }
+    }
+
+    // 均值和方差的在线计算（Welford）
+    private static class Sample {
+        int n;
+        double mean;
+        private double m2;
+
+        void add(double x) {
+            this.n++;
+            double delta = x - this.mean;
+            this.mean += delta / this.n;
+            this.m2 += delta * (x - this.mean);
+        }
+
+        // 均值 95% 置信区间的半宽
+        double error() {
+            if (this.n < 2) {
+                return -1;
+            }
+            return 1.96 * Math.sqrt(this.m2 / (this.n - 1) / this.n);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+
+// 一个文件夹“本层”的列举结果：直接子文件的个数和字节数，以及直接子文件夹的名称
+class DirLevel {
+
+    // 列举时文件夹自身的修改时间（毫秒），用于判断缓存是否失效
+    long mtime;
+    long fileNum;
+    long size;
+    // 本层是否有既不是文件也不是文件夹的子项
+    boolean other;
+    final ArrayList<String> subdirs = new ArrayList<>();
+    // 新列举时顺带读到的子文件夹属性，避免再读一次；来自缓存时为 null
+    ArrayList<BasicFileAttributes> subdirAttrs;
+
+    // 本层的统计，子文件夹的子树由调用方再合并进来
+    TreeStats stats() {
+        TreeStats stats = new TreeStats();
+        stats.fileNum = this.fileNum;
+        stats.size = this.size;
+        if (this.fileNum > 0 || this.other) {
+            stats.depth = 2;
+        }
+        return stats;
+    }
+
+    // 放入缓存的副本，不保留属性对象
+    DirLevel without_attrs() {
+        DirLevel copy = new DirLevel();
+        copy.mtime = this.mtime;
+        copy.fileNum = this.fileNum;
+        copy.size = this.size;
+        copy.other = this.other;
+        copy.subdirs.addAll(this.subdirs);
+        return copy;
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/*
+dir 的输出。每统计完一项就写一行，经过缓冲区成块写出，不在内存里攒整张表。
+text 是原来给人看的表格；tsv 和 json（每行一个 JSON 对象）给其它工具读，大小是字节数，不做单位换算。
+dir /fast 的输出多一列，标明这一行是精确值还是估计值；估计值给出 95% 置信区间的半宽，探测不足两次时为 -1。
+*/
+class DirPrinter {
+
+    static final String TEXT = "text";
+    static final String TSV = "tsv";
+    static final String JSON = "json";
+
+    private static final String TEXT_HEADER = "文件(夹)名称     类型(文件/文件夹)     最大深度     内含文件夹总数     内含文件总数     内含文件大小之和";
+    private static final String TSV_HEADER = "name\ttype\tdepth\tdirs\tfiles\tsize";
+    private static final String TEXT_FAST_COLUMN = "     精确/估计";
+    private static final String TSV_FAST_COLUMNS = "\texact\tdirs_error\tfiles_error\tsize_error";
+
+    private final String format;
+    private final Writer out;
+    private final boolean fast;
+
+    DirPrinter(String format, PrintStream stream) {
+        this(format, stream, false);
+    }
+
+    DirPrinter(String format, PrintStream stream, boolean fast) {
+        this.format = format;
+        this.out = new BufferedWriter(new StreamWriter(stream), 1 << 16);
+        this.fast = fast;
+    }
+
+    // 按标准输出自己的编码写出，整块交给它
+    private static class StreamWriter extends Writer {
+        private final PrintStream stream;
+
+        StreamWriter(PrintStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            this.stream.append(CharBuffer.wrap(buffer, offset, length));
+        }
+
+        @Override
+        public void flush() {
+            this.stream.flush();
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    static boolean valid(String format) {
+        return format.equals(TEXT) || format.equals(TSV) || format.equals(JSON);
+    }
+
+    void header() throws IOException {
+        if (this.format.equals(TEXT)) {
+            this.out.write(this.fast ? TEXT_HEADER + TEXT_FAST_COLUMN : TEXT_HEADER);
+            this.out.write('\n');
+        } else if (this.format.equals(TSV)) {
+            this.out.write(this.fast ? TSV_HEADER + TSV_FAST_COLUMNS : TSV_HEADER);
+            this.out.write('\n');
+        }
+    }
+
+    void row(String name, BasicFileAttributes attrs, TreeStats stats) throws IOException {
+        row(name, attrs != null && attrs.isDirectory(), stats.depth, stats.dirNum, stats.fileNum, stats.size);
+    }
+
+    void row(String name, boolean dir, int depth, long dirs, long files, long size) throws IOException {
+        switch (this.format) {
+            case TSV:
+                this.out.write(tsv_escape(name) + '\t' + (dir ? "dir" : "file") + '\t' + depth + '\t'
+                        + dirs + '\t' + files + '\t' + size + (this.fast ? "\ttrue\t0\t0\t0\n" : "\n"));
+                break;
+            case JSON:
+                this.out.write("{\"name\":" + json_string(name) + ",\"type\":\"" + (dir ? "dir" : "file")
+                        + "\",\"depth\":" + depth + ",\"dirs\":" + dirs + ",\"files\":" + files
+                        + ",\"size\":" + size + (this.fast ? ",\"exact\":true}\n" : "}\n"));
+                break;
+            default:
+                // 名称、是文件还是文件夹、最大深度、内含文件夹总数、内含文件总数、内含文件大小之和
+                this.out.write(name + "     " + (dir ? "文件夹" : "文件") + "     " + depth + "     "
+                        + dirs + "     " + files + "     " + MiniDOS.formatFileSize(size) + "     " + (this.fast ? "精确     \n" : "\n"));
+        }
+    }
+
+    // dir /fast 的一行：精确的项和普通的行一样，估计的项数值取整，深度是下界
+    void row(DirEstimator.Estimate e) throws IOException {
+        if (e.exact) {
+            row(e.name, e.dir(), e.depth, (long) e.dirs, (long) e.files, (long) e.size);
+            return;
+        }
+        long dirs = Math.round(e.dirs);
+        long files = Math.round(e.files);
+        long size = Math.round(e.size);
+        switch (this.format) {
+            case TSV:
+                this.out.write(tsv_escape(e.name) + '\t' + (e.dir() ? "dir" : "file") + '\t' + e.depth + '\t'
+                        + dirs + '\t' + files + '\t' + size + "\tfalse\t" + Math.round(e.dirsError) + '\t'
+                        + Math.round(e.filesError) + '\t' + Math.round(e.sizeError) + '\n');
+                break;
+            case JSON:
+                this.out.write("{\"name\":" + json_string(e.name) + ",\"type\":\"" + (e.dir() ? "dir" : "file")
+                        + "\",\"depth\":" + e.depth + ",\"dirs\":" + dirs + ",\"files\":" + files
+                        + ",\"size\":" + size + ",\"exact\":false,\"probes\":" + e.probes
+                        + ",\"dirs_error\":" + Math.round(e.dirsError) + ",\"files_error\":" + Math.round(e.filesError)
+                        + ",\"size_error\":" + Math.round(e.sizeError) + "}\n");
+                break;
+            default:
+                this.out.write(e.name + "     " + (e.dir() ? "文件夹" : "文件") + "     ≥" + e.depth + "     约"
+                        + dirs + "     约" + files + "     约" + MiniDOS.formatFileSize(size) + "     " + estimate_mark(e) + "     \n");
+        }
+    }
+
+    private static String estimate_mark(DirEstimator.Estimate e) {
+        if (e.probes < 2) {
+            return "估计（抽样" + e.probes + "次，误差未知）";
+        }
+        return "估计（抽样" + e.probes + "次，文件数±" + percent(e.filesError, e.files) + "，大小±" + percent(e.sizeError, e.size) + "）";
+    }
+
+    private static String percent(double error, double value) {
+        return value <= 0 ? "0%" : String.format("%.1f%%", error * 100 / value);
+    }
+
+    // 写出缓冲区；不关闭底层的标准输出
+    void flush() throws IOException {
+        this.out.flush();
+    }
+
+    // 文件名里的制表符和换行会打乱 TSV 的行列，转义成 \t、\n
+    private static String tsv_escape(String s) {
+        if (s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0 && s.indexOf('\\') < 0) {
+            return s;
+        }
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String json_string(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
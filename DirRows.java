@@ -0,0 +1,182 @@
+import java.io.IOException;
+
+/*
+dir /sort 和 dir /top 的结果表。除名称外每一列都是基本类型数组，不再每行一个装着装箱整数和格式化好的大小的 ArrayList<Object>。
+/sort 收下所有行，输出前用堆排序按键从大到小排好；/top N 最多只留 N 行，
+留下的行按键组成小顶堆，新行比堆顶大才替换堆顶，内存只和 N 有关，与文件夹里有多少项无关。
+键相同的行按列举顺序输出。
+*/
+class DirRows {
+
+    static final String SIZE = "size";
+    static final String FILES = "files";
+    static final String DEPTH = "depth";
+
+    private final String key;
+    // 最多保留的行数，/sort 时不限
+    private final int limit;
+
+    private String[] names;
+    private boolean[] dirs;
+    private int[] depths;
+    private long[] dirNums;
+    private long[] fileNums;
+    private long[] sizes;
+    // 列举顺序，键相同时先列举的排在前面
+    private long[] seqs;
+    // 堆，存放行号；/top 时一直维持小顶堆，/sort 时到输出前才建堆
+    private int[] heap;
+    private int count;
+    private long added;
+
+    DirRows(String key, int limit) {
+        this.key = key;
+        this.limit = limit;
+        allocate(Math.min(limit, 64));
+    }
+
+    static boolean valid_key(String key) {
+        return key.equals(SIZE) || key.equals(FILES) || key.equals(DEPTH);
+    }
+
+    void add(String name, boolean dir, TreeStats stats) {
+        long seq = this.added++;
+        int slot;
+        boolean appended = this.count < this.limit;
+        if (appended) {
+            if (this.count == this.names.length) {
+                allocate((int) Math.min(this.limit, 2L * this.count));
+            }
+            slot = this.count++;
+            this.heap[slot] = slot;
+        } else {
+            // 已满：新行的键不比堆顶大就丢掉（键相同时先列举的优先），否则顶替堆顶那一行
+            long k = key_of(stats);
+            int top = this.heap[0];
+            if (k <= key(top)) {
+                return;
+            }
+            slot = top;
+        }
+
+        this.names[slot] = name;
+        this.dirs[slot] = dir;
+        this.depths[slot] = stats.depth;
+        this.dirNums[slot] = stats.dirNum;
+        this.fileNums[slot] = stats.fileNum;
+        this.sizes[slot] = stats.size;
+        this.seqs[slot] = seq;
+
+        if (this.limit == Integer.MAX_VALUE) {
+            return;
+        }
+        if (appended) {
+            sift_up(this.count - 1);
+        } else {
+            sift_down(0, this.count);
+        }
+    }
+
+    // 按键从大到小输出
+    void print(DirPrinter printer) throws IOException {
+        int n = this.count;
+        if (this.limit == Integer.MAX_VALUE) {
+            for (int i = n / 2 - 1; i >= 0; i--) {
+                sift_down(i, n);
+            }
+        }
+        // 小顶堆的堆排序：每次把最小的换到末尾，排完后从大到小
+        for (int end = n - 1; end > 0; end--) {
+            swap(0, end);
+            sift_down(0, end);
+        }
+        for (int i = 0; i < n; i++) {
+            int slot = this.heap[i];
+            printer.row(this.names[slot], this.dirs[slot], this.depths[slot], this.dirNums[slot], this.fileNums[slot], this.sizes[slot]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        int old = this.names == null ? 0 : this.count;
+        this.names = grow(this.names, new String[capacity], old);
+        this.dirs = grow(this.dirs, new boolean[capacity], old);
+        this.depths = grow(this.depths, new int[capacity], old);
+        this.dirNums = grow(this.dirNums, new long[capacity], old);
+        this.fileNums = grow(this.fileNums, new long[capacity], old);
+        this.sizes = grow(this.sizes, new long[capacity], old);
+        this.seqs = grow(this.seqs, new long[capacity], old);
+        this.heap = grow(this.heap, new int[capacity], old);
+    }
+
+    private static <T> T grow(T from, T to, int length) {
+        if (from != null) {
+            System.arraycopy(from, 0, to, 0, length);
+        }
+        return to;
+    }
+
+    private long key_of(TreeStats stats) {
+        switch (this.key) {
+            case FILES:
+                return stats.fileNum;
+            case DEPTH:
+                return stats.depth;
+            default:
+                return stats.size;
+        }
+    }
+
+    private long key(int slot) {
+        switch (this.key) {
+            case FILES:
+                return this.fileNums[slot];
+            case DEPTH:
+                return this.depths[slot];
+            default:
+                return this.sizes[slot];
+        }
+    }
+
+    // 行 a 是否排在行 b 后面：键更小，或者键相同但列举得更晚
+    private boolean less(int a, int b) {
+        long ka = key(a);
+        long kb = key(b);
+        return ka < kb || (ka == kb && this.seqs[a] > this.seqs[b]);
+    }
+
+    private void sift_up(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!less(this.heap[i], this.heap[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void sift_down(int i, int n) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < n && less(this.heap[left], this.heap[smallest])) {
+                smallest = left;
+            }
+            if (right < n && less(this.heap[right], this.heap[smallest])) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int t = this.heap[a];
+        this.heap[a] = this.heap[b];
+        this.heap[b] = t;
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/*
+查找内容相同的文件，分三级筛选，每一级只处理上一级留下的候选：
+1. 遍历时按文件大小分组，大小独一无二的文件不可能重复；
+2. 大小相同的再比较开头和结尾各一块的摘要；
+3. 仍然相同的才读完整个文件计算完整摘要。
+后两级在线程池中并行计算。空文件和指向同一个文件的多个路径（硬链接、符号链接）不算重复。
+读取失败（查找期间被删除、没有权限）的文件不参与比较，记在 skipped 中，查找照常进行。
+*/
+class DupFinder {
+
+    // 首尾各摘要多少字节
+    private static final int EDGE_BLOCK = 64 * 1024;
+
+    private final TreeScanner scanner;
+    private final ForkJoinPool pool;
+    private final ConcurrentLinkedQueue<String> skipped = new ConcurrentLinkedQueue<>();
+
+    DupFinder(ForkJoinPool pool) {
+        this.scanner = new TreeScanner(pool, null, null);
+        this.pool = pool;
+    }
+
+    // 一组重复文件
+    static class Group {
+        final long size;
+        final List<Path> paths;
+
+        Group(long size, List<Path> paths) {
+            this.size = size;
+            this.paths = paths;
+        }
+    }
+
+    // 返回所有重复文件组，按单个文件大小从大到小排列
+    List<Group> find(Path dir) throws IOException {
+        // 第一级：按大小分组，同一个文件（fileKey 相同）只留一个路径
+        ConcurrentHashMap<Long, ConcurrentHashMap<Object, Path>> by_size = new ConcurrentHashMap<>();
+        this.scanner.walk_files(dir, (path, attrs) -> {
+            if (attrs.size() == 0) {
+                return;
+            }
+            Object key = attrs.fileKey() != null ? attrs.fileKey() : path;
+            by_size.computeIfAbsent(attrs.size(), size -> new ConcurrentHashMap<>()).putIfAbsent(key, path);
+        });
+
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<Long, ConcurrentHashMap<Object, Path>> entry : by_size.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                for (Path path : entry.getValue().values()) {
+                    candidates.add(new Candidate(path, entry.getKey()));
+                }
+            }
+        }
+
+        // 第二级：首尾摘要；不超过两块的文件首尾已经覆盖全部内容，这一级就是最终结果
+        List<List<Candidate>> groups = regroup(candidates, c -> c.size + ":" + encode(FileHasher.hash_edges(c.path, c.size, EDGE_BLOCK)));
+
+        // 第三级：完整摘要
+        ArrayList<Group> result = new ArrayList<>();
+        ArrayList<Candidate> need_full = new ArrayList<>();
+        for (List<Candidate> group : groups) {
+            if (group.get(0).size <= 2L * EDGE_BLOCK) {
+                result.add(to_group(group));
+            } else {
+                need_full.addAll(group);
+            }
+        }
+        for (List<Candidate> group : regroup(need_full, c -> c.size + ":" + encode(FileHasher.hash(c.path)))) {
+            result.add(to_group(group));
+        }
+
+        result.sort(Comparator.comparingLong((Group g) -> g.size).reversed());
+        return result;
+    }
+
+    // 读取失败而没有参与比较的文件及原因
+    List<String> skipped() {
+        return new ArrayList<>(this.skipped);
+    }
+
+    private static class Candidate {
+        final Path path;
+        final long size;
+
+        Candidate(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    // 在线程池中并行计算每个候选的键，只保留键相同的文件在两个以上的组；算不出键的候选丢掉并记下
+    private List<List<Candidate>> regroup(List<Candidate> candidates, HashFunction key) throws IOException {
+        ConcurrentHashMap<Candidate, String> keys = new ConcurrentHashMap<>();
+        try {
+            this.pool.submit(() -> candidates.parallelStream().forEach(c -> {
+                try {
+                    keys.put(c, key.apply(c));
+                } catch (IOException | UncheckedIOException | SecurityException e) {
+                    this.skipped.add(c.path + "：" + DeleteEngine.reason(e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : e));
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("查找被中断");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+
+        Map<String, List<Candidate>> grouped = keys.entrySet().stream()
+                .collect(Collectors.groupingBy(Map.Entry::getValue, Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+        Collection<List<Candidate>> all = grouped.values();
+        return all.stream().filter(group -> group.size() > 1).collect(Collectors.toList());
+    }
+
+    private interface HashFunction {
+        String apply(Candidate candidate) throws IOException;
+    }
+
+    private static Group to_group(List<Candidate> candidates) {
+        ArrayList<Path> paths = new ArrayList<>();
+        for (Candidate c : candidates) {
+            paths.add(c.path);
+        }
+        paths.sort(null);
+        return new Group(candidates.get(0).size, paths);
+    }
+
+    private static String encode(byte[] digest) {
+        return Base64.getEncoder().encodeToString(digest);
+    }
+}
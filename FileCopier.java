@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+/*
+单个文件的拷贝。
+优先用 FileChannel.transferTo 让内核直接在两个文件之间搬数据（Linux 上是 sendfile），数据不经过用户空间；
+内核不支持时退回到每个线程复用的一块大的直接缓冲区，一次读写 1MB，而不是原来每 1KB 一次系统调用。
+限速时按 Progress 给出的段长分段搬，每段之前领取令牌；不限速时段长无限，和不限速之前完全一样。
+*/
+class FileCopier {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    // 拷贝一个文件，返回拷贝的字节数；keep_attrs 为 true 时同时保留修改时间和权限
+    static long copy(Path src, Path des, boolean keep_attrs, Progress progress) throws IOException {
+        FileCopyEvent event = new FileCopyEvent();
+        event.begin();
+        long copied;
+        try (
+                FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(des, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            copied = transfer(in, out, in.size(), progress);
+        }
+
+        if (keep_attrs) {
+            copy_attrs(src, des);
+        }
+        Metrics.file();
+        if (event.shouldCommit()) {
+            event.source = src.toString();
+            event.bytes = copied;
+            event.commit();
+        }
+        return copied;
+    }
+
+    // 内核拷贝，transferTo 一次可能只搬一部分；拷完后文件还在变长时，用缓冲区把多出的部分也拷完
+    static long transfer(FileChannel in, FileChannel out, long size, Progress progress) throws IOException {
+        long position = copy_range(in, out, 0, size, progress);
+        if (in.size() > position) {
+            long grown = position;
+            position = buffered(in, out, position, Long.MAX_VALUE, progress);
+            Metrics.copied(position - grown);
+        }
+        return position;
+    }
+
+    // 拷贝 [position, position + count) 这一段到目标文件的同一位置；一个字节都搬不动时改用缓冲区拷贝剩下的部分
+    static long copy_range(FileChannel in, FileChannel out, long position, long count, Progress progress) throws IOException {
+        long start = position;
+        long end = position + count;
+        long slice = progress.slice();
+        out.position(position);
+        while (position < end) {
+            long step = Math.min(slice, end - position);
+            progress.throttle_bytes(step);
+            long n = in.transferTo(position, step, out);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+        }
+
+        if (position < end) {
+            position = buffered(in, out, position, end, progress);
+        }
+        Metrics.copied(position - start);
+        return position;
+    }
+
+    // 用直接缓冲区按位置读写，直到 end 或源文件末尾
+    private static long buffered(FileChannel in, FileChannel out, long position, long end, Progress progress) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            progress.throttle_bytes(buffer.remaining());
+            int n = in.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+        return position;
+    }
+
+    // 保留修改时间、访问时间和 POSIX 权限；不支持的属性直接跳过
+    static void copy_attrs(Path src, Path des) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+        Files.getFileAttributeView(des, BasicFileAttributeView.class)
+                .setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), null);
+
+        PosixFileAttributeView des_posix = Files.getFileAttributeView(des, PosixFileAttributeView.class);
+        if (des_posix != null) {
+            PosixFileAttributes src_posix = Files.readAttributes(src, PosixFileAttributes.class);
+            des_posix.setPermissions(src_posix.permissions());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// 拷贝一个文件的 JFR 事件，默认只记录耗时超过 10 毫秒的
+@Name("minidos.FileCopy")
+@Label("MiniDOS 文件拷贝")
+@Category("MiniDOS")
+@Description("拷贝单个文件")
+@jdk.jfr.Threshold("10 ms")
+class FileCopyEvent extends jdk.jfr.Event {
+
+    @Label("源文件")
+    String source;
+
+    @Label("字节数")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,279 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/*
+按名称、大小和内容查找文件。
+条件在开始前全部编译好：通配符转成一个正则（只有 * 后缀、纯文本等简单形式时直接比较字符串），要找的文本转成字节和 Horspool 跳转表。
+检查按代价从低到高：先名称，再大小（遍历时已经读到属性），最后才打开文件看内容。
+内容用内存映射按窗口读取，小文件直接读进每个线程复用的缓冲区，找到第一处就停止读这个文件。
+遍历用 TreeScanner 并行进行，需要看内容的文件各自成为一个任务；找到的文件立即交给 sink，够了 limit 个就让遍历和其余任务停下。
+也可以在 TreeIndex 上查找：名称和大小直接从索引读，不访问磁盘，只有要看内容时才打开文件。
+*/
+class FileFinder {
+
+    // 小于这个大小的文件直接读，映射的开销不划算
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    // 大文件每次映射的窗口
+    private static final long MAP_WINDOW = 64L << 20;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAP_THRESHOLD));
+
+    // 为 null 表示不限
+    private NameMatcher name;
+    private Needle needle;
+    private long minSize = -1;
+    private long maxSize = -1;
+
+    private final ForkJoinPool pool;
+    // 检查过的文件数和读过内容的文件数
+    final LongAdder checked = new LongAdder();
+    final LongAdder searched = new LongAdder();
+
+    FileFinder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // 通配符：* 任意个字符，? 一个字符，不区分大小写
+    void glob(String glob) {
+        this.name = NameMatcher.glob(glob);
+    }
+
+    // 正则在文件名中能找到匹配即可
+    void regex(String regex) {
+        Pattern pattern = Pattern.compile(regex);
+        this.name = name -> pattern.matcher(name).find();
+    }
+
+    void contains(String text) {
+        this.needle = new Needle(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 大小范围，闭区间，-1 表示这一端不限
+    void size(long min, long max) {
+        this.minSize = min;
+        this.maxSize = max;
+    }
+
+    // 查找 dir 下的文件，找到一个就交给 sink（可能在多个线程中调用，但不会同时调用）；最多 limit 个，返回是否因为达到上限而提前停止
+    boolean find(Path dir, long limit, Consumer<Path> sink) {
+        AtomicLong found = new AtomicLong();
+        Consumer<Path> emit = path -> {
+            if (found.incrementAndGet() <= limit) {
+                synchronized (this) {
+                    sink.accept(path);
+                }
+            }
+        };
+        ConcurrentLinkedQueue<ForkJoinTask<?>> reads = new ConcurrentLinkedQueue<>();
+
+        new TreeScanner(this.pool, null, null).walk_files(dir, (path, attrs) -> {
+            this.checked.increment();
+            if (!match(path.getFileName().toString(), attrs.size())) {
+                return;
+            }
+            if (this.needle == null) {
+                emit.accept(path);
+            } else if (this.pool == null) {
+                search(path, attrs.size(), found, limit, emit);
+            } else {
+                // 读内容的代价远大于列举，每个文件单独成为一个任务，不占着遍历的线程；walk_files 在线程池里调用 sink，fork 进的是同一个池
+                reads.add(ForkJoinTask.adapt(() -> search(path, attrs.size(), found, limit, emit)).fork());
+            }
+        }, () -> found.get() >= limit);
+
+        for (ForkJoinTask<?> task : reads) {
+            task.join();
+        }
+        // 用满上限时不再确认后面是否还有
+        return found.get() >= limit;
+    }
+
+    // 在索引中 dir 下面查找，用法和 find 相同；索引是快照，要看内容的文件可能已经不在了，按不包含处理
+    boolean find(TreeIndex index, int dir, long limit, Consumer<Path> sink) {
+        AtomicLong found = new AtomicLong();
+        Consumer<Path> emit = path -> {
+            if (found.incrementAndGet() <= limit) {
+                synchronized (this) {
+                    sink.accept(path);
+                }
+            }
+        };
+        ConcurrentLinkedQueue<ForkJoinTask<?>> reads = new ConcurrentLinkedQueue<>();
+
+        index.walk(dir, id -> {
+            if (found.get() >= limit || index.kind(id) != TreeIndex.FILE) {
+                return;
+            }
+            this.checked.increment();
+            // 大小在前，名称要从名称表解码
+            long size = index.size(id);
+            if (!match_size(size) || this.name != null && !this.name.matches(index.name(id))) {
+                return;
+            }
+            Path path = index.path(id);
+            if (this.needle == null) {
+                emit.accept(path);
+            } else if (this.pool == null) {
+                search(path, size, found, limit, emit);
+            } else {
+                reads.add(this.pool.submit(() -> search(path, size, found, limit, emit)));
+            }
+        });
+
+        for (ForkJoinTask<?> task : reads) {
+            task.join();
+        }
+        return found.get() >= limit;
+    }
+
+    private boolean match(String file_name, long size) {
+        return match_size(size) && (this.name == null || this.name.matches(file_name));
+    }
+
+    private boolean match_size(long size) {
+        if (this.minSize >= 0 && size < this.minSize) {
+            return false;
+        }
+        return this.maxSize < 0 || size <= this.maxSize;
+    }
+
+    private void search(Path path, long size, AtomicLong found, long limit, Consumer<Path> emit) {
+        if (found.get() >= limit) {
+            return;
+        }
+        this.searched.increment();
+        try {
+            if (contains(path, size, this.needle)) {
+                emit.accept(path);
+            }
+        } catch (IOException | SecurityException e) {
+            // 读不了的文件当作不包含
+        }
+    }
+
+    static boolean contains(Path path, long size, Needle needle) throws IOException {
+        if (needle.bytes.length == 0) {
+            return true;
+        }
+        if (size < needle.bytes.length) {
+            return false;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            // 遍历之后文件可能变短，映射不能超出文件末尾
+            size = Math.min(size, in.size());
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = BUFFER.get();
+                buffer.clear();
+                while (buffer.hasRemaining() && in.read(buffer) > 0) {
+                    // 读到缓冲区满或文件末尾
+                }
+                Metrics.read(buffer.position());
+                return needle.find(buffer, 0, buffer.position()) >= 0;
+            }
+
+            // 相邻窗口重叠 needle 长度减一，跨窗口的匹配不会漏掉
+            long overlap = needle.bytes.length - 1;
+            for (long position = 0; position < size; position += MAP_WINDOW - overlap) {
+                long length = Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int hit = needle.find(window, 0, (int) length);
+                if (hit >= 0) {
+                    Metrics.read(hit + needle.bytes.length);
+                    return true;
+                }
+                Metrics.read(length);
+                if (position + length >= size) {
+                    break;
+                }
+            }
+            return false;
+        }
+    }
+
+    private interface NameMatcher {
+        boolean matches(String name);
+
+        // 只有一个 * 且在开头或结尾、或者没有通配符时直接比较字符串，其余情况转成正则
+        static NameMatcher glob(String glob) {
+            String lower = glob.toLowerCase();
+            if (lower.indexOf('?') < 0) {
+                int star = lower.indexOf('*');
+                if (star < 0) {
+                    return name -> name.equalsIgnoreCase(glob);
+                }
+                if (star == lower.lastIndexOf('*')) {
+                    String prefix = lower.substring(0, star);
+                    String suffix = lower.substring(star + 1);
+                    int min_length = prefix.length() + suffix.length();
+                    return name -> name.length() >= min_length
+                            && name.regionMatches(true, 0, prefix, 0, prefix.length())
+                            && name.regionMatches(true, name.length() - suffix.length(), suffix, 0, suffix.length());
+                }
+            }
+
+            StringBuilder regex = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*') {
+                    regex.append(".*");
+                } else if (c == '?') {
+                    regex.append('.');
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            Pattern pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+            return name -> pattern.matcher(name).matches();
+        }
+    }
+
+    // 要找的字节串和 Boyer-Moore-Horspool 的跳转表
+    static class Needle {
+        final byte[] bytes;
+        private final int[] shift = new int[256];
+
+        Needle(byte[] bytes) {
+            this.bytes = bytes;
+            Arrays.fill(this.shift, bytes.length);
+            for (int i = 0; i < bytes.length - 1; i++) {
+                this.shift[bytes[i] & 0xFF] = bytes.length - 1 - i;
+            }
+        }
+
+        // 在 [from, to) 中查找，返回第一处匹配的位置，没有时返回 -1
+        int find(ByteBuffer buffer, int from, int to) {
+            int n = this.bytes.length;
+            int last = n - 1;
+            byte tail = this.bytes[last];
+            for (int i = from; i + last < to; ) {
+                byte b = buffer.get(i + last);
+                if (b == tail && matches_at(buffer, i)) {
+                    return i;
+                }
+                i += this.shift[b & 0xFF];
+            }
+            return -1;
+        }
+
+        private boolean matches_at(ByteBuffer buffer, int at) {
+            for (int j = this.bytes.length - 2; j >= 0; j--) {
+                if (buffer.get(at + j) != this.bytes[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// 文件内容的 SHA-256 摘要，每个线程复用一块直接缓冲区
+class FileHasher {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    static byte[] hash(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            return hash(in, 0, Long.MAX_VALUE);
+        }
+    }
+
+    // 摘要 [position, position + length) 这一段，超出文件末尾的部分忽略
+    static byte[] hash(FileChannel in, long position, long length) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = BUFFER.get();
+        long start = position;
+        long end = length == Long.MAX_VALUE ? Long.MAX_VALUE : position + length;
+
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int n = in.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += n;
+        }
+        Metrics.read(position - start);
+        return digest.digest();
+    }
+
+    // 只摘要开头和结尾各 block 字节，用来快速排除大小相同但内容不同的文件
+    static byte[] hash_edges(Path path, long size, int block) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            digest.update(hash(in, 0, block));
+            if (size > block) {
+                digest.update(hash(in, Math.max(block, size - block), block));
+            }
+        }
+        return digest.digest();
+    }
+
+    static boolean same_content(Path a, Path b) throws IOException {
+        return Arrays.equals(hash(a), hash(b));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
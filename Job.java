@@ -0,0 +1,180 @@
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Future;
+
+/*
+一个后台任务：提交时的命令行、进度、输出和状态。
+进度按阶段记录：move 跨文件系统时先拷贝再删除，每个阶段一个新的 Progress，取消对之后的阶段同样有效。
+*/
+class Job {
+
+    final int id;
+    final String line;
+    // 任务线程里所有 System.out 的输出
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final long startNanos = System.nanoTime();
+
+    private volatile String phase = "准备";
+    private volatile Progress progress = new Progress();
+    // 本阶段的总量，未知时为 -1
+    private volatile long totalFiles = -1;
+    private volatile long totalBytes = -1;
+    private volatile boolean cancelled;
+    // 本任务的限速器，每个阶段的进度都用它；为 null 表示不限速
+    private volatile RateLimiter limiter;
+    private volatile boolean failed;
+    private volatile long endNanos;
+    Future<?> future;
+
+    // 已经交给 fg 或完成通知输出过的字节数
+    private int shown;
+    // 估算当前速率的上一次采样
+    private long sampleNanos;
+    private long sampleBytes;
+    private long sampleFiles;
+    private double byteRate;
+    private double fileRate;
+
+    Job(int id, String line) {
+        this.id = id;
+        this.line = line;
+    }
+
+    /*
+    开始一个新阶段，返回本阶段的进度。
+    先发布新进度再检查 cancelled：cancel 先置标志再取消当前进度，两边的顺序相反，任何交错下新阶段都会被取消。
+    */
+    Progress begin(String phase, long total_files, long total_bytes) {
+        Progress progress = new Progress();
+        progress.limiter = this.limiter;
+        this.phase = phase;
+        this.totalFiles = total_files;
+        this.totalBytes = total_bytes;
+        this.progress = progress;
+        if (this.cancelled) {
+            progress.cancel();
+        }
+        synchronized (this) {
+            this.sampleNanos = 0;
+        }
+        return progress;
+    }
+
+    Progress progress() {
+        return this.progress;
+    }
+
+    // 已知本阶段总量时补上，用于估算剩余时间
+    void total(long files, long bytes) {
+        this.totalFiles = files;
+        this.totalBytes = bytes;
+    }
+
+    void limit(RateLimiter limiter) {
+        this.limiter = limiter;
+        this.progress.limiter = limiter;
+    }
+
+    RateLimiter limiter() {
+        return this.limiter;
+    }
+
+    void cancel() {
+        this.cancelled = true;
+        this.progress.cancel();
+    }
+
+    void finish(boolean failed) {
+        this.failed = failed;
+        this.endNanos = System.nanoTime();
+    }
+
+    boolean done() {
+        return this.endNanos != 0;
+    }
+
+    // 结束且既没有失败也没有被取消
+    boolean succeeded() {
+        return done() && !this.failed && !this.cancelled;
+    }
+
+    String state() {
+        if (!done()) {
+            return this.cancelled ? "正在取消" : "运行中";
+        }
+        if (this.cancelled) {
+            return "已取消";
+        }
+        return this.failed ? "失败" : "已完成";
+    }
+
+    // 一行状态：进度、当前速率和剩余时间；已结束的只给出用时
+    synchronized String status() {
+        long now = done() ? this.endNanos : System.nanoTime();
+        String head = "[" + this.id + "] " + state() + "  " + this.line;
+        if (done()) {
+            return head + "  用时" + String.format("%.1f秒", (now - this.startNanos) / 1e9);
+        }
+
+        Progress progress = this.progress;
+        long files = progress.files.sum();
+        long bytes = progress.bytes.sum();
+        // 每秒最多采样一次，速率取最近一段时间的平均
+        if (this.sampleNanos == 0) {
+            this.sampleNanos = now;
+            this.sampleBytes = bytes;
+            this.sampleFiles = files;
+        } else if (now - this.sampleNanos >= 1_000_000_000L) {
+            double seconds = (now - this.sampleNanos) / 1e9;
+            this.byteRate = (bytes - this.sampleBytes) / seconds;
+            this.fileRate = (files - this.sampleFiles) / seconds;
+            this.sampleNanos = now;
+            this.sampleBytes = bytes;
+            this.sampleFiles = files;
+        } else if (this.byteRate == 0 && this.fileRate == 0 && progress.seconds() > 0) {
+            this.byteRate = bytes / progress.seconds();
+            this.fileRate = files / progress.seconds();
+        }
+
+        StringBuilder sb = new StringBuilder(head).append("  ").append(this.phase).append(' ');
+        sb.append(files);
+        if (this.totalFiles >= 0) {
+            sb.append('/').append(this.totalFiles);
+        }
+        sb.append("个");
+        long removed = progress.removed.sum();
+        if (removed > 0) {
+            sb.append("  删除").append(removed).append("个");
+        }
+        if (this.totalBytes > 0 || bytes > 0) {
+            sb.append("  ").append(MiniDOS.formatFileSize(bytes));
+            if (this.totalBytes > 0) {
+                sb.append('/').append(MiniDOS.formatFileSize(this.totalBytes));
+            }
+            sb.append("  ").append(MiniDOS.formatFileSize((long) this.byteRate)).append("/秒");
+        } else {
+            sb.append("  ").append(String.format("%.1f", this.fileRate)).append("个/秒");
+        }
+
+        double eta = -1;
+        if (this.totalBytes > 0 && this.byteRate > 0) {
+            eta = (this.totalBytes - bytes) / this.byteRate;
+        } else if (this.totalFiles > 0 && this.fileRate > 0) {
+            eta = (this.totalFiles - files) / this.fileRate;
+        }
+        if (eta >= 0) {
+            long s = (long) Math.ceil(eta);
+            sb.append(String.format("  剩余%02d:%02d:%02d", s / 3600, s / 60 % 60, s % 60));
+        }
+        return sb.toString();
+    }
+
+    // 取出还没有输出过的内容
+    String take_output() {
+        synchronized (this.output) {
+            byte[] all = this.output.toByteArray();
+            String text = new String(all, this.shown, all.length - this.shown);
+            this.shown = all.length;
+            return text;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/*
+标准输出的分流。提交第一个后台任务时装到 System.out 上：
+后台任务的线程把输出写进任务自己的缓冲区，交互界面和其它线程照常写到原来的标准输出。
+*/
+class JobOutput extends OutputStream {
+
+    private static final ThreadLocal<OutputStream> TARGET = new ThreadLocal<>();
+
+    private final PrintStream console;
+
+    private JobOutput(PrintStream console) {
+        this.console = console;
+    }
+
+    static synchronized void install() {
+        if (!(System.out instanceof Routed)) {
+            System.setOut(new Routed(new JobOutput(System.out)));
+        }
+    }
+
+    // 当前线程之后的输出写到 out，直到 release
+    static void capture(OutputStream out) {
+        TARGET.set(out);
+    }
+
+    static void release() {
+        TARGET.remove();
+    }
+
+    private OutputStream target() {
+        OutputStream out = TARGET.get();
+        return out != null ? out : this.console;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target().flush();
+    }
+
+    // 用来识别已经装过分流的 System.out
+    private static class Routed extends PrintStream {
+        Routed(JobOutput out) {
+            super(out, true);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+延迟直方图（纳秒）。按 2 的幂分段，每段再等分 8 格，任何取值的相对误差不超过 1/8；
+固定 488 格，记录一次只是几次原子加，可以多线程同时记录。
+*/
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((63 - SUB_BITS) * SUB + SUB);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.buckets.incrementAndGet(index(nanos));
+        this.count.increment();
+        this.sum.add(nanos);
+        this.max.accumulateAndGet(nanos, Math::max);
+    }
+
+    long count() {
+        return this.count.sum();
+    }
+
+    long mean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : this.sum.sum() / n;
+    }
+
+    long max() {
+        return this.max.get();
+    }
+
+    // 第 p 百分位（0 < p <= 100），返回所在格的上界，不超过最大值
+    long percentile(double p) {
+        long n = this.count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * p / 100);
+        long seen = 0;
+        for (int i = 0; i < this.buckets.length(); i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upper(i), max());
+            }
+        }
+        return max();
+    }
+
+    private static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    private static long upper(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int exp = index / SUB + SUB_BITS - 1;
+        int sub = index % SUB;
+        return ((SUB + sub + 1L) << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+运行统计：每条命令的延迟直方图和出错次数，以及读写字节数、涉及的文件数、stat 和列目录的次数、I/O 出错次数。
+关闭时（默认）每个埋点只是读一次 volatile 标志，不计时也不计数；用 stats on 或 -Dminidos.metrics=true 开启。
+JFR 事件（CommandEvent、FileCopyEvent）与这里的开关无关，由 JFR 录制本身决定。
+*/
+class Metrics {
+
+    static volatile boolean enabled = Boolean.getBoolean("minidos.metrics");
+
+    private static final ConcurrentHashMap<String, Command> COMMANDS = new ConcurrentHashMap<>();
+    private static final LongAdder BYTES_READ = new LongAdder();
+    private static final LongAdder BYTES_WRITTEN = new LongAdder();
+    private static final LongAdder FILES = new LongAdder();
+    private static final LongAdder STATS = new LongAdder();
+    private static final LongAdder LISTS = new LongAdder();
+    private static final LongAdder ERRORS = new LongAdder();
+
+    static class Command {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    // 命令开始时取时间，关闭时返回 0
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void command(String name, long start, boolean failed) {
+        if (!enabled || start == 0) {
+            return;
+        }
+        Command command = COMMANDS.computeIfAbsent(name, key -> new Command());
+        command.latency.record(System.nanoTime() - start);
+        if (failed) {
+            command.errors.increment();
+        }
+    }
+
+    static void read(long bytes) {
+        if (enabled) {
+            BYTES_READ.add(bytes);
+        }
+    }
+
+    // 拷贝：读写各计一次
+    static void copied(long bytes) {
+        if (enabled) {
+            BYTES_READ.add(bytes);
+            BYTES_WRITTEN.add(bytes);
+        }
+    }
+
+    // 新建、拷贝或删除了一个文件
+    static void file() {
+        if (enabled) {
+            FILES.increment();
+        }
+    }
+
+    static void stat() {
+        if (enabled) {
+            STATS.increment();
+        }
+    }
+
+    static void list() {
+        if (enabled) {
+            LISTS.increment();
+        }
+    }
+
+    static void error() {
+        if (enabled) {
+            ERRORS.increment();
+        }
+    }
+
+    static void reset() {
+        COMMANDS.clear();
+        BYTES_READ.reset();
+        BYTES_WRITTEN.reset();
+        FILES.reset();
+        STATS.reset();
+        LISTS.reset();
+        ERRORS.reset();
+    }
+
+    // 按命令名排序的快照
+    static Map<String, Command> commands() {
+        return new TreeMap<>(COMMANDS);
+    }
+
+    static long bytes_read() {
+        return BYTES_READ.sum();
+    }
+
+    static long bytes_written() {
+        return BYTES_WRITTEN.sum();
+    }
+
+    static long files() {
+        return FILES.sum();
+    }
+
+    static long stats() {
+        return STATS.sum();
+    }
+
+    static long lists() {
+        return LISTS.sum();
+    }
+
+    static long errors() {
+        return ERRORS.sum();
+    }
+}
@@ -1,7 +1,29 @@
 import java.io.*;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.regex.*;
 
 /*
@@ -13,11 +35,70 @@ import java.util.regex.*;
 
 public class MiniDOS {
 
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("(\\S+)");
+    private static final Set<String> COMMANDS = Set.of("help", "cd", "dir", "watch", "md", "rn", "copy", "move", "del", "dup", "find", "stats", "jobs", "fg", "cancel", "rate", "pack", "unpack", "index", "exit");
+    // dir 同时在途的子项数，超过时先输出最早的一项
+    private static final int DIR_WINDOW = 256;
+    private static final Pattern SIZE_PATTERN = Pattern.compile("(\\d{1,15})([KMGTkmgt]?)[Bb]?");
+
     private File currentDir;
+    private final TreeScanner scanner = new TreeScanner();
+    private final PathResolver resolver = new PathResolver();
+    private ForkJoinPool scanPool;
+    private StatsCache statsCache;
+    // 监视模式下维护工作目录整棵树的统计，为 null 表示未开启
+    private TreeWatcher treeWatcher;
+    // 打开的树索引，为 null 表示没有；dir /i、find /i、index size 和 cd 从这里查
+    private TreeIndex treeIndex;
+    private CopyEngine copyEngine;
+    // 拷贝文件夹时并发拷贝文件的线程数，可用 -Dminidos.copy.workers=N 配置
+    private int copyWorkers = Integer.getInteger("minidos.copy.workers", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    // dir /p 和 del 的默认并行度，可用 -Dminidos.parallelism=N 配置
+    private int parallelism = Integer.getInteger("minidos.parallelism", Runtime.getRuntime().availableProcessors());
+    // 批处理 -y：del 不再询问
+    private boolean assumeYes;
+    // 后台任务，按编号排列；任务结束并通知过之后移除
+    private final LinkedHashMap<Integer, Job> jobs = new LinkedHashMap<>();
+    private ExecutorService jobExecutor;
+    private int nextJobId = 1;
+    // 不为 null 表示这是执行该后台任务的外壳
+    private Job job;
+    // 会话默认限速，由 rate 命令调整；后台任务共用同一个对象，运行中调整同样生效
+    private final RateLimiter sessionLimiter;
+    // 当前这条 copy、move、del 命令的限速：带 /rate、/ops 时是自己的，否则是会话默认
+    private RateLimiter limiter;
+    // 当前命令用 fail 报告的失败原因，为 null 表示没有失败
+    private String failure;
 
     public static void main(String[] args) {
+        String script = null;
+        boolean yes = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-y")) {
+                yes = true;
+            } else if (args[i].equals("-f") && i + 1 < args.length) {
+                script = args[++i];
+            } else {
+                System.err.println("用法：MiniDOS [-f 脚本文件|-] [-y]");
+                System.exit(2);
+            }
+        }
+
         MiniDOS dos = new MiniDOS();
-        dos.run();
+        // 给了 -f 或 -y 就是批处理模式；-f - 或只给 -y 时从标准输入读脚本
+        if (script == null && !yes) {
+            dos.run();
+            return;
+        }
+        try {
+            List<String> lines = script == null || script.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in)).lines().toList()
+                    : Files.readAllLines(Paths.get(script));
+            System.exit(dos.run_batch(lines, yes));
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("无法读取脚本：" + e.getMessage());
+            System.exit(2);
+        }
     }
 
     public MiniDOS() {
@@ -25,6 +106,19 @@ public class MiniDOS {
         ClassLoader classLoader = MiniDOS.class.getClassLoader();
         URL location = classLoader.getResource("");
         this.currentDir = new File(location.getPath());
+        // 会话默认限速可以在启动时用 -Dminidos.rate=200M、-Dminidos.rate.ops=500 给出
+        this.sessionLimiter = new RateLimiter(size_property("minidos.rate", "0"), Long.getLong("minidos.rate.ops", 0));
+    }
+
+    // 后台任务的外壳：工作目录取提交时的副本，拷贝引擎和线程池都是自己的，任务结束后关闭
+    private MiniDOS(MiniDOS parent, Job job) {
+        this.currentDir = parent.currentDir;
+        this.parallelism = parent.parallelism;
+        this.copyWorkers = parent.copyWorkers;
+        // del 已经在提交前确认过
+        this.assumeYes = true;
+        this.job = job;
+        this.sessionLimiter = parent.sessionLimiter;
     }
 
     public void run() {
@@ -32,96 +126,289 @@ public class MiniDOS {
         System.out.println("欢迎进入迷你文件操作系统!" + "\n" + "请直接输入命令，或输入help查询所有命令");
 
         while (true) {
+            report_finished_jobs();
             System.out.print("\n"); // 回车空行
             System.out.print(this.currentDir.getPath() + ">");
             String input = scanner.nextLine().trim();
             if (input.isEmpty()) continue;
 
-            Pattern pattern = Pattern.compile("(\\S+)");
-            Matcher matcher = pattern.matcher(input);
-
-            ArrayList<String> tokens = new ArrayList<>();
+            ArrayList<String> tokens = tokenize(input);
 
-            while (matcher.find()) {
-                tokens.add(matcher.group(1));
+            try {
+                if (!execute(tokens, scanner)) {
+                    return;
+                }
+            } catch (CommandFailedException e) {
+                // 原因已经打印过
+            } catch (Exception e) {
+                System.out.println("执行命令时发生错误：" + e.getMessage());
+                e.printStackTrace();
             }
+        }
+    }
 
+    /*
+    批处理模式：先解析整个脚本，有不认识的命令、或者没加 -y 却要 del 时，报出所有出错的行号，一条命令也不执行。
+    解析通过后逐行执行，不打印提示符；输出先进缓冲区，结束时一次写出。某一行出错就停下并报告行号。
+    结束前等所有后台任务完成，失败的任务同样报告并计入退出码。
+    空行和 # 开头的行忽略。返回进程退出码：0 成功，1 执行出错，2 脚本有错。
+    */
+    int run_batch(List<String> lines, boolean yes) {
+        ArrayList<ArrayList<String>> commands = new ArrayList<>();
+        ArrayList<Integer> line_nums = new ArrayList<>();
+        boolean bad = false;
+        for (int i = 0; i < lines.size(); i++) {
+            String input = lines.get(i).trim();
+            if (input.isEmpty() || input.startsWith("#")) continue;
+
+            ArrayList<String> tokens = tokenize(input);
             String command = tokens.get(0).toLowerCase();
+            if (!COMMANDS.contains(command)) {
+                System.err.println("第" + (i + 1) + "行：不能识别的命令" + tokens.get(0));
+                bad = true;
+            } else if (command.equals("del") && !yes) {
+                System.err.println("第" + (i + 1) + "行：del 需要确认，批处理时请加 -y");
+                bad = true;
+            }
+            commands.add(tokens);
+            line_nums.add(i + 1);
+        }
+        if (bad) {
+            return 2;
+        }
 
-            try {
-                switch (command) {
-                    case "help":
-                        handleHelp(); // finished
-                        break;
-                    case "cd":
-                        handleCd(tokens); // finished
-                        break;
-                    case "dir":
-                        handleDir(tokens); // finished
-                        break;
-                    case "md":
-                        handleMd(tokens); // to be done
-                        break;
-                    case "rn":
-                        handleRn(tokens);
-                        break;
-                    case "copy":
-                        handleCopy(tokens, this.currentDir);
-                        break;
-                    case "move":
-                        handleMove(tokens);
-                        break;
-                    case "del":
-                        handleDel(tokens, scanner, this.currentDir);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false));
+        this.assumeYes = yes;
+        try {
+            int code = 0;
+            for (int i = 0; i < commands.size(); i++) {
+                try {
+                    if (!execute(commands.get(i), null)) {
                         break;
-                    case "exit":
-                        System.out.println("再见！");
-                        return;
-                    default:
-                        System.out.println("不能正确解析命令。注意命令和参数之间、参数与参数之间至少有一个空格或制表符。请输入help查询所有命令。");
+                    }
+                } catch (CommandFailedException e) {
+                    System.out.flush();
+                    System.err.println("第" + line_nums.get(i) + "行：" + e.getMessage());
+                    code = 1;
+                    break;
+                } catch (Exception e) {
+                    System.out.flush();
+                    System.err.println("第" + line_nums.get(i) + "行：执行命令时发生错误：" + e.getMessage());
+                    code = 1;
+                    break;
                 }
-            } catch (Exception e) {
-                System.out.println("执行命令时发生错误：" + e.getMessage());
-                e.printStackTrace();
             }
+            ArrayList<Job> failed = wait_jobs();
+            System.out.flush();
+            for (Job job : failed) {
+                System.err.println("后台任务" + job.id + "：" + job.state() + "  " + job.line);
+                code = 1;
+            }
+            return code;
+        } finally {
+            System.out.flush();
+            System.setOut(console);
         }
     }
 
+    private static ArrayList<String> tokenize(String input) {
+        Matcher matcher = TOKEN_PATTERN.matcher(input);
+        ArrayList<String> tokens = new ArrayList<>();
+        while (matcher.find()) {
+            tokens.add(matcher.group(1));
+        }
+        return tokens;
+    }
+
+    // 执行一条命令并记录耗时，exit 时返回 false；scanner 为 null 表示没有交互输入（批处理）
+    // 处理函数用 fail 报告的失败在这里变成 CommandFailedException
+    private boolean execute(ArrayList<String> tokens, Scanner scanner) throws Exception {
+        this.failure = null;
+        String command = tokens.get(0).toLowerCase();
+        // 以单独的 & 结尾表示在后台执行
+        if (tokens.size() > 1 && tokens.get(tokens.size() - 1).equals("&")) {
+            ArrayList<String> job_tokens = new ArrayList<>(tokens.subList(0, tokens.size() - 1));
+            submit_job(command, job_tokens, scanner);
+            throw_if_failed();
+            return true;
+        }
+        if (command.equals("copy") || command.equals("move") || command.equals("del")) {
+            tokens = new ArrayList<>(tokens);
+            if (!take_rate(tokens)) {
+                throw_if_failed();
+                return true;
+            }
+        }
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        long start = Metrics.start();
+        boolean failed = true;
+        try {
+            boolean go_on = dispatch(command, tokens, scanner);
+            failed = this.failure != null;
+            throw_if_failed();
+            return go_on;
+        } finally {
+            // 不认识的命令不计，免得随手输入的内容撑大统计表
+            if (COMMANDS.contains(command)) {
+                Metrics.command(command, start, failed);
+            }
+            if (event.shouldCommit()) {
+                event.command = command;
+                event.line = String.join(" ", tokens);
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    // 报告本条命令失败：打印原因，execute 按失败处理，批处理就此停下
+    private void fail(String message) {
+        System.out.println(message);
+        this.failure = message;
+    }
+
+    private void throw_if_failed() throws CommandFailedException {
+        if (this.failure != null) {
+            throw new CommandFailedException(this.failure);
+        }
+    }
+
+    // 命令没有完成，原因已经由 fail 打印
+    private static class CommandFailedException extends Exception {
+        CommandFailedException(String message) {
+            super(message);
+        }
+    }
+
+    private boolean dispatch(String command, ArrayList<String> tokens, Scanner scanner) throws Exception {
+        switch (command) {
+            case "help":
+                handleHelp(); // finished
+                break;
+            case "cd":
+                handleCd(tokens); // finished
+                break;
+            case "dir":
+                handleDir(tokens); // finished
+                break;
+            case "watch":
+                handleWatch(tokens);
+                break;
+            case "md":
+                handleMd(tokens); // to be done
+                break;
+            case "rn":
+                handleRn(tokens);
+                break;
+            case "copy":
+                handleCopy(tokens, this.currentDir);
+                break;
+            case "move":
+                handleMove(tokens);
+                break;
+            case "del":
+                handleDel(tokens, scanner, this.currentDir);
+                break;
+            case "dup":
+                handleDup(tokens);
+                break;
+            case "stats":
+                handleStats(tokens);
+                break;
+            case "jobs":
+                handleJobs();
+                break;
+            case "fg":
+                handleFg(tokens);
+                break;
+            case "cancel":
+                handleCancel(tokens);
+                break;
+            case "rate":
+                handleRate(tokens);
+                break;
+            case "find":
+                handleFind(tokens);
+                break;
+            case "pack":
+                handlePack(tokens);
+                break;
+            case "unpack":
+                handleUnpack(tokens);
+                break;
+            case "index":
+                handleIndex(tokens);
+                break;
+            case "exit":
+                if (!confirm_exit(scanner)) {
+                    return true;
+                }
+                System.out.println("再见！");
+                return false;
+            default:
+                fail("不能正确解析命令。注意命令和参数之间、参数与参数之间至少有一个空格或制表符。请输入help查询所有命令。");
+        }
+        return true;
+    }
+
     private void handleHelp() {
         System.out.println("""
-                迷你文件操作系统共有9个命令，不区分大小写，其参数分为无参、单参和双参3种情况。
+                迷你文件操作系统共有20个命令，不区分大小写，其参数分为无参、单参和双参3种情况。
                 命令前后可以有任意多的空白，命令和参数之间、参数与参数之间可以有任意多的空白，但至少有一个空格或制表符。
                 help --列出所有命令及描述，无参。
-                cd-更改当前工作目录，单参，参数分为相对路径和绝对路径两种。两个点 .. 表示上级目录，反斜杠 \\ 表示根目录。单参表示相对路径或绝对路径。dir-·显示目录中的内容，包括文件/文件夹类型、文件总数、文件字节总数等。无参或单参：无参表示针对当前目录；单参表示相对文件夹或绝对文件夹。
+                cd-更改当前工作目录，单参，参数分为相对路径和绝对路径两种。两个点 .. 表示上级目录，反斜杠 \\ 表示根目录。单参表示相对路径或绝对路径。dir-·显示目录中的内容，包括文件/文件夹类型、文件总数、文件字节总数等。无参或单参：无参表示针对当前目录；单参表示相对文件夹或绝对文件夹。可加开关/p或/p:N，用N个线程并行统计；可加开关/c，使用持久化的统计缓存，未变化的文件夹不再重新遍历；可加开关/f:tsv或/f:json，输出制表符分隔或每行一个JSON对象的格式，大小以字节为单位，便于交给其它程序处理；可加开关/sort size、/sort files或/sort depth从大到小排序，加开关/top N只列出最大的N项（默认按大小）。可加开关/i，从打开的索引输出，不访问磁盘；可加开关/fast或/fast:毫秒（默认500毫秒），在限定时间内输出，来不及精确统计的子文件夹按随机抽样估计，标明“精确”或“估计”及误差；再加开关/refine，在后台把估计的各项精确统计出来。
                 md --在当前工作目录下创建文件夹。单参，表示新创建的文件夹名称，要符合操作系统文件夹名称规范。
                 rn --把当前工作目录下的一个直接子目录或子文件重新命名。双参，分别表示更改前名称和更改后名称。
-                copy --拷贝文件。单参或双参。单参表示把文件或文件夹拷贝至当前工作目 录。双参，第1参数表示源路径，文件和文件夹均可；第2参数表示目的文件夹路径。双参均可以是相对路径，也可以是绝对路径。不执行逻辑不通的拷贝，包括已存或无限递归等情况。del --删除文件或文件夹。单参，表示要级联删除的文件或文件夹。不能删除当前工作文件夹，也不能删除当前工作文件夹的任意祖先。这个命令在执行之前需要证的用户同意。
+                copy --拷贝文件。单参或双参。单参表示把文件或文件夹拷贝至当前工作目 录。双参，第1参数表示源路径，文件和文件夹均可；第2参数表示目的文件夹路径。双参均可以是相对路径，也可以是绝对路径。不执行逻辑不通的拷贝，包括已存或无限递归等情况。可加开关/a，保留修改时间和权限；拷贝中断后可加开关/resume，用相同的参数从中断处继续；加开关/sync只拷贝新增或变化的文件，再加/hash比较内容，加/purge删除目的地中多余的文件（夹）。拷贝前先预检整棵树，目的地已有同名文件时不写入任何内容并列出冲突，加开关/o覆盖；加开关/plan只预检、列出全部冲突而不拷贝。del --删除文件或文件夹。单参，表示要级联删除的文件或文件夹。不能删除当前工作文件夹，也不能删除当前工作文件夹的任意祖先。这个命令在执行之前需要证的用户同意。
                 move--把文件或文件夹移走至目的文件夹。单参或双参。单参表示把文件或文件夹移至当前工作目录。双参表示把第1参文件或文件夹移至第2参文件夹。不能移动当前工作文件夹及其祖先；不能出现已存或无限递归情况。exit --退出迷你文件操作系统。无参。
+                watch --开启或关闭监视模式。单参，on 或 off。开启后在内存中实时维护当前工作目录整棵树的统计，dir 直接读取结果而不再遍历；cd 时监视范围随之移动。
+                dup --查找内容相同的文件。单参，表示要查找的文件夹。先按大小、再按首尾内容、最后按完整内容逐级筛选，列出每组重复文件和可以节省的空间。
+                find --查找文件。find 文件夹 [-name 通配符|-regex 正则] [-contains 文本] [-size >N|<N|N] [-limit N]，加开关/i 在打开的索引中查找。-name 不区分大小写，* 表示任意个字符，? 表示一个字符；-regex 在文件名中能找到匹配即可；-contains 查找文件内容中的一个词，找到第一处即停；-size 可以写两次表示范围，N 可带 K、M、G 单位。多线程查找，找到一个输出一个，默认最多输出1000个，-limit 0 表示不限；可加开关/p:N指定线程数。
+                stats --查看运行统计：每条命令的次数、出错次数和延迟分布，读写字节数、涉及的文件数、stat 和列目录的次数。无参或单参：on 开启统计，off 关闭，reset 清零。默认关闭，也可以用 -Dminidos.metrics=true 启动时开启。
+                copy、move、del 后面加 & 在后台执行，工作目录取提交时的目录，交互界面可以继续输入命令；批处理结束前等待所有后台任务。
+                jobs --列出后台任务的状态、已完成的文件数和字节数、当前速率和剩余时间。无参。
+                fg --等待一个后台任务结束，期间每秒显示一次进度，结束后显示它的输出。无参表示最近提交的任务，单参表示任务编号。
+                cancel --取消一个后台任务。单参，表示任务编号。取消的拷贝留下拷贝日志，可以用 copy /resume 继续。
+                copy、move、del 可加开关 /rate 200M 限制每秒读写的字节数，/ops 500 限制每秒拷贝或删除的文件数，只对这一条命令有效；不加时使用会话默认限速。
+                rate --查看或调整限速。无参列出会话默认限速和各后台任务的限速；rate 200M 或 rate off 调整会话默认的字节速率，/ops N 或 /ops off 调整每秒操作数；加 /job N 只调整第N个后台任务。调整立即对正在运行的任务生效。
+                pack --把文件或文件夹打成压缩包。双参，第1参数是要打包的文件或文件夹，第2参数是压缩包路径，以 .zip、.tar.gz 或 .tgz 结尾决定格式。边遍历边压缩，多线程分块压缩，可加开关/p:N指定线程数。压缩包不能放在被打包的文件夹里面；压缩包已经存在时加开关/o覆盖。
+                unpack --解开压缩包。单参或双参，第1参数是 zip 或 tar.gz 压缩包，第2参数是目的文件夹，单参时解到当前工作目录。先检查全部冲突，目的地已有同名文件时不写入任何内容，加开关/o覆盖。
+                index --树的快照索引。index build 文件夹 遍历整棵树，把名称（去重）、父子关系、大小和修改时间写进索引文件并用内存映射打开，可加开关/p:N并行列举；index open 文件夹 打开以前建立的索引；index refresh 按文件夹的修改时间增量刷新；index size [路径] 从索引给出文件夹的文件数和总大小；index close 关闭；无参显示索引的状态。打开索引后 dir 和 find 加开关/i 直接查索引，cd 索引范围内的路径也在索引中解析。
+                批处理：java MiniDOS -f 脚本文件 逐行执行脚本中的命令，-f - 或只加 -y 时从标准输入读取；加 -y 时 del 不再询问。执行前先检查整个脚本，出错时报告行号。
                 """);
     }
 
     private void handleCd(ArrayList<String> tokens) throws IOException {
-        // TODO: 实现cd命令，支持 ..、\、相对路径、绝对路径
         // no parameter
         if (tokens.size() == 1) {
-            System.out.println("更改当前工作目录的命令cd后面需要加单参数：表示相对路径或绝对路径；但也可以是双点..表示返回上级目录");
+            fail("更改当前工作目录的命令cd后面需要加单参数：表示相对路径或绝对路径；但也可以是双点..表示返回上级目录");
             return;
         }
 
-        File target_dir = new_file(this.currentDir, tokens.get(1));
         // only accept one parameter
         if (tokens.size() > 2) {
-            System.out.println("此命令只接收单参！");
+            fail("此命令只接收单参！");
+            return;
+        }
+
+        File target_dir = new_file(this.currentDir, tokens.get(1));
+        int indexed_id = index_lookup(target_dir);
+
+        // 打开了索引时，路径在索引中解析，不再逐级规范化；索引是快照，再读一次属性确认文件夹还在，不在时仍按磁盘判断
+        if (indexed_id >= 0 && this.treeIndex.dir(indexed_id) && Files.isDirectory(indexed_path(target_dir), LinkOption.NOFOLLOW_LINKS)) {
+            this.currentDir = indexed_path(target_dir).toFile();
         }
 
         // it doesn't exist
         else if (!target_dir.exists()) {
-            System.out.println("目标目录不存在");
+            fail("目标目录不存在");
         }
 
         // it's not a directory
         else if (!target_dir.isDirectory()) {
-            System.out.println("目标目录不是文件夹，而是文件");
+            fail("目标目录不是文件夹，而是文件");
         }
 
         // it's a root
@@ -149,50 +436,874 @@ public class MiniDOS {
         else {
             this.currentDir = target_dir;
         }
+
+        // 工作目录变了，缓存的规范路径作废
+        this.resolver.invalidate();
+
+        // 监视模式下，被监视的树跟着工作目录移动
+        if (this.treeWatcher != null) {
+            this.treeWatcher.move_root(this.resolver.canonical(this.currentDir));
+        }
     }
 
     private void handleDir(ArrayList<String> tokens) throws IOException {
-        ArrayList<ArrayList<Object>> lines = new ArrayList<>();
-        String firstline = new String("文件(夹)名称     类型(文件/文件夹)     最大深度     内含文件夹总数     内含文件总数     内含文件大小之和");
-        // no parameter
-        // 名称、是文件还是文件夹、最大深度、内含文件夹总数、内含文件总数、内含文件大小之和
-        if (tokens.size() == 1) {
-            System.out.println(firstline);
-            this.calculate_dir(lines, this.currentDir);
-            for (ArrayList<Object> line : lines) {
-                for (Object o : line) {
-                    System.out.print(o + "     ");
-                }
-                System.out.println();
+        // 开关 /p 或 /p:N 表示并行统计，N 为并行度；开关 /c 表示使用持久化的统计缓存；开关 /f:tsv 或 /f:json 输出给其它工具读的格式
+        tokens = new ArrayList<>(tokens);
+        String parallel = take_switch(tokens, "/p");
+        boolean cached = take_switch(tokens, "/c") != null;
+        String format = take_switch(tokens, "/f");
+        if (format == null) {
+            format = DirPrinter.TEXT;
+        } else if (!DirPrinter.valid(format)) {
+            fail("开关/f只能是 /f:text、/f:tsv 或 /f:json。");
+            return;
+        }
+        // 开关 /fast 或 /fast:毫秒 在限定时间内（默认 500 毫秒）输出，来不及精确统计的子文件夹给出抽样估计；再加开关 /refine 在后台把估计的各项算成精确值
+        String fast = take_switch(tokens, "/fast");
+        boolean refine = take_switch(tokens, "/refine") != null;
+        // 开关 /i 从打开的索引输出
+        boolean indexed = take_switch(tokens, "/i") != null;
+        // 开关 /sort 键 按 size、files 或 depth 从大到小输出；开关 /top N 只输出键最大的 N 项，不加 /sort 时按 size
+        String sort = take_option(tokens, "/sort");
+        String top = take_option(tokens, "/top");
+        DirRows rows = null;
+        if (sort != null || top != null) {
+            String key = sort == null ? DirRows.SIZE : sort;
+            int limit = top == null ? Integer.MAX_VALUE : parse_positive(top);
+            if (!DirRows.valid_key(key)) {
+                fail("开关/sort只能按 size、files 或 depth 排序。");
+                return;
             }
-        } else if (tokens.size() > 2) {
-            System.out.println("命令dir用于显示文件或文件夹的信息，分为无参、单参两种情况。");
-        } else {
-            File parameter_file = new_file(this.currentDir, tokens.get(1));
-            System.out.println(firstline);
-            // 如果是文件夹
+            if (limit <= 0) {
+                fail("开关/top后面需要一个正整数。");
+                return;
+            }
+            rows = new DirRows(key, limit);
+        }
+        long budget = 0;
+        if (fast != null) {
+            // 估计值没法排序，缓存也只对精确统计有用
+            if (rows != null || cached) {
+                fail("开关/fast不能和/sort、/top、/c一起使用。");
+                return;
+            }
+            budget = fast.isEmpty() ? 500 : parse_positive(fast);
+            if (budget <= 0) {
+                fail("开关/fast后面需要一个正整数（毫秒）。");
+                return;
+            }
+        } else if (refine) {
+            fail("开关/refine只能和/fast一起使用。");
+            return;
+        }
+        if (indexed) {
+            if (fast != null || cached) {
+                fail("开关/i不能和/fast、/c一起使用。");
+                return;
+            }
+            if (this.treeIndex == null) {
+                fail("没有打开的索引，先用 index build 或 index open。");
+                return;
+            }
+        }
+        ForkJoinPool pool = null;
+        if (parallel != null) {
+            pool = scan_pool(parallel.isEmpty() ? this.parallelism : parse_positive(parallel));
+            if (pool == null) {
+                fail("并行度必须是正整数。");
+                return;
+            }
+        }
+        TreeScanner scanner = new TreeScanner(pool, cached ? stats_cache() : null, this.treeWatcher);
+
+        if (tokens.size() > 2) {
+            fail("命令dir用于显示文件或文件夹的信息，分为无参、单参两种情况，可加开关/p或/p:N并行统计，加开关/c使用统计缓存，加开关/f:tsv或/f:json输出制表符分隔或每行一个JSON对象的格式，加开关/sort键或/top N排序或只列出最大的N项，加开关/fast或/fast:毫秒限时估计。");
+            return;
+        }
+
+        // 无参针对当前工作目录，单参针对给定的文件或文件夹
+        File parameter_file = tokens.size() == 1 ? this.currentDir : new_file(this.currentDir, tokens.get(1));
+        if (indexed) {
+            this.indexed_dir(format, rows, parameter_file);
+            return;
+        }
+        if (fast != null && parameter_file.isDirectory()) {
+            this.fast_dir(format, parameter_file, pool, budget, refine);
+            return;
+        }
+        DirPrinter printer = new DirPrinter(format, System.out, fast != null);
+        printer.header();
+        try {
             if (parameter_file.isDirectory()) {
-                this.calculate_dir(lines, parameter_file);
+                this.calculate_dir(printer, rows, parameter_file, scanner);
             } else if (parameter_file.isFile()) {
-                this.calculate_file(lines, parameter_file);
+                this.calculate_file(printer, parameter_file);
+            }
+        } finally {
+            printer.flush();
+        }
+    }
+
+    private void handleWatch(ArrayList<String> tokens) throws IOException {
+        if (tokens.size() != 2) {
+            fail("命令watch用于开启或关闭监视模式，单参：on 或 off。");
+        } else if (tokens.get(1).equalsIgnoreCase("on")) {
+            if (this.treeWatcher != null) {
+                System.out.println("监视模式已经开启。");
+                return;
+            }
+            this.treeWatcher = new TreeWatcher(this.resolver.canonical(this.currentDir));
+            System.out.println("监视模式已开启，正在监视" + this.treeWatcher.watched_num() + "个文件夹。");
+        } else if (tokens.get(1).equalsIgnoreCase("off")) {
+            if (this.treeWatcher != null) {
+                this.treeWatcher.close();
+                this.treeWatcher = null;
+            }
+            System.out.println("监视模式已关闭。");
+        } else {
+            fail("命令watch的参数只能是 on 或 off。");
+        }
+    }
+
+    private void handleDup(ArrayList<String> tokens) throws IOException {
+        if (tokens.size() != 2) {
+            fail("命令dup用于查找内容相同的文件，单参：要查找的文件夹。");
+            return;
+        }
+
+        File dir = new_file(this.currentDir, tokens.get(1));
+        if (!dir.isDirectory()) {
+            fail("要查找的文件夹不存在。");
+            return;
+        }
+
+        DupFinder finder = new DupFinder(scan_pool(this.parallelism));
+        List<DupFinder.Group> groups = finder.find(this.resolver.canonical(dir));
+        long saving = 0;
+        for (DupFinder.Group group : groups) {
+            System.out.println(group.paths.size() + "个相同的文件，每个" + formatFileSize(group.size) + "：");
+            for (Path path : group.paths) {
+                System.out.println("    " + path);
+            }
+            saving += group.size * (group.paths.size() - 1);
+        }
+        System.out.println("共" + groups.size() + "组重复文件，可节省" + formatFileSize(saving) + "。");
+
+        // 读取失败的文件没有参与比较，结果可能不完整（最多列出前20项）
+        List<String> skipped = finder.skipped();
+        if (!skipped.isEmpty()) {
+            fail("以下" + skipped.size() + "个文件读取失败，没有参与比较：");
+            for (int i = 0; i < skipped.size() && i < 20; i++) {
+                System.out.println("  " + skipped.get(i));
+            }
+            if (skipped.size() > 20) {
+                System.out.println("  ……");
+            }
+        }
+    }
+
+    private void handleFind(ArrayList<String> tokens) throws IOException {
+        tokens = new ArrayList<>(tokens);
+        String parallel = take_switch(tokens, "/p");
+        boolean indexed = take_switch(tokens, "/i") != null;
+        if (tokens.size() < 2 || tokens.size() % 2 != 0) {
+            fail("命令find：find 文件夹 [-name 通配符|-regex 正则] [-contains 文本] [-size >N|<N|N] [-limit N]。");
+            return;
+        }
+        int threads = parallel == null || parallel.isEmpty() ? this.parallelism : parse_positive(parallel);
+        if (parallel != null && threads <= 0) {
+            fail("开关/p的线程数不合法。");
+            return;
+        }
+
+        File dir = new_file(this.currentDir, tokens.get(1));
+        // 开关 /i 在打开的索引中查找，名称和大小不访问磁盘
+        int indexed_dir = -1;
+        if (indexed) {
+            if (this.treeIndex == null) {
+                fail("没有打开的索引，先用 index build 或 index open。");
+                return;
+            }
+            indexed_dir = index_lookup(dir);
+            if (indexed_dir < 0 || !this.treeIndex.dir(indexed_dir)) {
+                fail("索引中没有这个文件夹。");
+                return;
             }
-            for (ArrayList<Object> line : lines) {
-                for (Object o : line) {
-                    System.out.print(o + "     ");
+        } else if (!dir.isDirectory()) {
+            fail("要查找的文件夹不存在。");
+            return;
+        }
+
+        FileFinder finder = new FileFinder(scan_pool(threads));
+        long limit = 1000;
+        long min_size = -1;
+        long max_size = -1;
+        for (int i = 2; i < tokens.size(); i += 2) {
+            String option = tokens.get(i).toLowerCase();
+            String value = tokens.get(i + 1);
+            switch (option) {
+                case "-name":
+                    finder.glob(value);
+                    break;
+                case "-regex":
+                    try {
+                        finder.regex(value);
+                    } catch (PatternSyntaxException e) {
+                        fail("正则表达式不合法：" + e.getDescription());
+                        return;
+                    }
+                    break;
+                case "-contains":
+                    finder.contains(value);
+                    break;
+                case "-size": {
+                    char op = value.charAt(0);
+                    long size = parse_size(op == '>' || op == '<' || op == '=' ? value.substring(1) : value);
+                    if (size < 0 || (op == '<' && size == 0)) {
+                        fail("大小不合法：" + value + "，例如 -size >10M。");
+                        return;
+                    }
+                    if (op == '>') {
+                        min_size = Math.max(min_size, size + 1);
+                    } else if (op == '<') {
+                        max_size = max_size < 0 ? size - 1 : Math.min(max_size, size - 1);
+                    } else {
+                        min_size = size;
+                        max_size = size;
+                    }
+                    break;
                 }
-                System.out.println();
+                case "-limit":
+                    try {
+                        limit = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        limit = -1;
+                    }
+                    if (limit < 0) {
+                        fail("-limit 要求非负整数，0 表示不限。");
+                        return;
+                    }
+                    if (limit == 0) {
+                        limit = Long.MAX_VALUE;
+                    }
+                    break;
+                default:
+                    fail("不认识的条件：" + tokens.get(i) + "。可用 -name、-regex、-contains、-size、-limit。");
+                    return;
+            }
+        }
+        if (max_size >= 0 && min_size > max_size) {
+            System.out.println("没有符合这个大小范围的文件。");
+            return;
+        }
+        finder.size(min_size, max_size);
+
+        long start = System.nanoTime();
+        LongAdder found = new LongAdder();
+        Consumer<Path> sink = path -> {
+            System.out.println(path);
+            found.increment();
+        };
+        boolean limited = indexed ? finder.find(this.treeIndex, indexed_dir, limit, sink)
+                : finder.find(this.resolver.canonical(dir), limit, sink);
+        System.out.printf("找到%d个文件，检查了%d个文件，读了其中%d个的内容，用时%.2f秒。%n",
+                found.sum(), finder.checked.sum(), finder.searched.sum(), (System.nanoTime() - start) / 1e9);
+        if (limited) {
+            System.out.println("已达到" + limit + "个的上限，可能还有更多，加 -limit 指定更大的数或 -limit 0 不限。");
+        }
+    }
+
+    private void handleStats(ArrayList<String> tokens) {
+        if (tokens.size() > 2) {
+            fail("命令stats无参或单参：on、off 或 reset。");
+            return;
+        }
+        if (tokens.size() == 2) {
+            switch (tokens.get(1).toLowerCase()) {
+                case "on":
+                    Metrics.enabled = true;
+                    System.out.println("统计已开启。");
+                    break;
+                case "off":
+                    Metrics.enabled = false;
+                    System.out.println("统计已关闭，已有的数据保留。");
+                    break;
+                case "reset":
+                    Metrics.reset();
+                    System.out.println("统计已清零。");
+                    break;
+                default:
+                    fail("命令stats的参数只能是 on、off 或 reset。");
             }
+            return;
+        }
+
+        if (!Metrics.enabled) {
+            System.out.println("统计未开启，用 stats on 开启。");
+        }
+        System.out.printf("%-6s%8s%6s%10s%10s%10s%10s%8s%n", "命令", "次数", "出错", "平均", "p50", "p90", "p99", "最大");
+        for (Map.Entry<String, Metrics.Command> entry : Metrics.commands().entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            System.out.printf("%-8s%10d%8d%12s%10s%10s%10s%10s%n", entry.getKey(), latency.count(), entry.getValue().errors.sum(),
+                    format_nanos(latency.mean()), format_nanos(latency.percentile(50)), format_nanos(latency.percentile(90)),
+                    format_nanos(latency.percentile(99)), format_nanos(latency.max()));
+        }
+        System.out.println("读取" + formatFileSize(Metrics.bytes_read()) + "，写入" + formatFileSize(Metrics.bytes_written())
+                + "，涉及" + Metrics.files() + "个文件，stat " + Metrics.stats() + "次，列目录" + Metrics.lists()
+                + "次，I/O出错" + Metrics.errors() + "次。");
+    }
+
+    private static String format_nanos(long nanos) {
+        if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        }
+        if (nanos < 1_000_000_000) {
+            return String.format("%.1fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+    // 在后台执行 copy、move、del
+    private void submit_job(String command, ArrayList<String> tokens, Scanner scanner) {
+        if (!command.equals("copy") && !command.equals("move") && !command.equals("del")) {
+            fail("只有 copy、move、del 可以在后台执行。");
+            return;
+        }
+        // 后台任务不能读键盘，del 在提交前确认
+        if (command.equals("del") && !this.assumeYes && !confirm(scanner, "将要在后台删除 " + String.join(" ", tokens.subList(1, tokens.size())) + " 及其下面的所有内容，确定吗?(Y/N)")) {
+            return;
+        }
+        start_job(String.join(" ", tokens), shell -> shell.execute(tokens, null));
+    }
+
+    // 后台任务在自己的外壳里执行的内容
+    private interface JobBody {
+        void run(MiniDOS shell) throws Exception;
+    }
+
+    private void start_job(String line, JobBody body) {
+        if (this.jobExecutor == null) {
+            AtomicInteger threads = new AtomicInteger();
+            this.jobExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "minidos-job-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            JobOutput.install();
+        }
+
+        Job job = new Job(this.nextJobId++, line);
+        MiniDOS shell = new MiniDOS(this, job);
+        synchronized (this.jobs) {
+            this.jobs.put(job.id, job);
+        }
+        job.future = this.jobExecutor.submit(() -> {
+            boolean failed = false;
+            JobOutput.capture(job.output);
+            try {
+                body.run(shell);
+            } catch (CommandFailedException e) {
+                failed = true;
+            } catch (Exception e) {
+                failed = true;
+                // 取消时引擎已经说明了停在哪里
+                if (!job.progress().cancelled()) {
+                    System.out.println("执行命令时发生错误：" + e.getMessage());
+                }
+            } finally {
+                System.out.flush();
+                JobOutput.release();
+                shell.close();
+                job.finish(failed);
+            }
+        });
+        System.out.println("[" + job.id + "] " + job.line);
+    }
+
+    private static boolean confirm(Scanner scanner, String question) {
+        while (true) {
+            System.out.println(question);
+            String input = scanner.nextLine().trim().toLowerCase();
+            if (input.equals("y")) {
+                return true;
+            }
+            if (input.equals("n")) {
+                return false;
+            }
+        }
+    }
+
+    // 后台任务外壳用完后关闭自己的线程池
+    private void close() {
+        if (this.copyEngine != null) {
+            this.copyEngine.shutdown();
+        }
+        if (this.scanPool != null) {
+            this.scanPool.shutdown();
+        }
+    }
+
+    private void handleJobs() {
+        ArrayList<Job> list;
+        synchronized (this.jobs) {
+            list = new ArrayList<>(this.jobs.values());
+        }
+        if (list.isEmpty()) {
+            System.out.println("没有后台任务。");
+            return;
+        }
+        for (Job job : list) {
+            System.out.println(job.status());
+        }
+    }
+
+    private void handleFg(ArrayList<String> tokens) throws InterruptedException {
+        if (tokens.size() > 2) {
+            fail("命令fg无参或单参：任务编号。");
+            return;
+        }
+        Job job = find_job(tokens.size() == 2 ? tokens.get(1) : null);
+        if (job == null) {
+            return;
+        }
+
+        System.out.print(job.take_output());
+        while (!job.done()) {
+            Thread.sleep(1000);
+            System.out.print(job.take_output());
+            if (!job.done()) {
+                System.out.println(job.status());
+            }
+        }
+        System.out.print(job.take_output());
+        System.out.println(job.status());
+        synchronized (this.jobs) {
+            this.jobs.remove(job.id);
+        }
+    }
+
+    private void handleCancel(ArrayList<String> tokens) {
+        if (tokens.size() != 2) {
+            fail("命令cancel是单参命令：任务编号。");
+            return;
+        }
+        Job job = find_job(tokens.get(1));
+        if (job == null) {
+            return;
+        }
+        if (job.done()) {
+            System.out.println("任务" + job.id + "已经结束。");
+            return;
+        }
+        job.cancel();
+        System.out.println("正在取消任务" + job.id + "，已经在拷贝或删除的文件完成后停止。");
+    }
+
+    // id 为 null 表示最近提交的任务
+    private Job find_job(String id) {
+        synchronized (this.jobs) {
+            if (id == null) {
+                Job last = null;
+                for (Job job : this.jobs.values()) {
+                    last = job;
+                }
+                if (last == null) {
+                    fail("没有后台任务。");
+                }
+                return last;
+            }
+            Job job = this.jobs.get(parse_positive(id));
+            if (job == null) {
+                fail("没有编号为" + id + "的后台任务。");
+            }
+            return job;
+        }
+    }
+
+    // 交互界面每次显示提示符前，报告已经结束的任务及其输出
+    private void report_finished_jobs() {
+        ArrayList<Job> finished = new ArrayList<>();
+        synchronized (this.jobs) {
+            this.jobs.values().removeIf(job -> job.done() && finished.add(job));
+        }
+        for (Job job : finished) {
+            System.out.println(job.status());
+            System.out.print(job.take_output());
+        }
+    }
+
+    // 等所有后台任务结束，按编号输出，返回失败或被取消的任务
+    private ArrayList<Job> wait_jobs() {
+        ArrayList<Job> list;
+        synchronized (this.jobs) {
+            list = new ArrayList<>(this.jobs.values());
+            this.jobs.clear();
+        }
+        ArrayList<Job> failed = new ArrayList<>();
+        for (Job job : list) {
+            try {
+                job.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return failed;
+            } catch (ExecutionException e) {
+                // 任务自己记录了失败
+            }
+            System.out.println(job.status());
+            System.out.print(job.take_output());
+            if (!job.succeeded()) {
+                failed.add(job);
+            }
+        }
+        return failed;
+    }
+
+    /*
+    任务线程是守护线程，直接退出会把正在拷贝或删除的任务停在半路。
+    交互时有没完成的任务就先确认，确认后取消它们并等到停下再退出；批处理不问，结束前 run_batch 会等所有任务完成。
+    */
+    private boolean confirm_exit(Scanner scanner) {
+        if (scanner == null) {
+            return true;
+        }
+        ArrayList<Job> running = new ArrayList<>();
+        synchronized (this.jobs) {
+            for (Job job : this.jobs.values()) {
+                if (!job.done()) {
+                    running.add(job);
+                }
+            }
+        }
+        if (running.isEmpty()) {
+            return true;
+        }
+        if (!confirm(scanner, "还有" + running.size() + "个后台任务没有完成，退出将取消它们。确定退出吗?(Y/N)")) {
+            return false;
+        }
+        for (Job job : running) {
+            job.cancel();
+        }
+        System.out.println("正在等待后台任务在当前文件完成后停止……");
+        wait_jobs();
+        return true;
+    }
+
+    // 本次拷贝或删除的进度；后台任务用任务当前阶段的进度，以便 jobs 查看和 cancel 取消
+    private Progress progress() {
+        if (this.job != null) {
+            return this.job.progress();
+        }
+        Progress progress = new Progress();
+        progress.limiter = this.limiter;
+        return progress;
+    }
+
+    // 取出 /rate、/ops 开关，决定这条命令的限速；值不合法时提示并返回 false
+    private boolean take_rate(ArrayList<String> tokens) {
+        String rate = take_option(tokens, "/rate");
+        String ops = take_option(tokens, "/ops");
+        RateLimiter limiter = this.sessionLimiter;
+        if (rate != null || ops != null) {
+            long bytes_per_second = rate == null ? this.sessionLimiter.bytes_rate() : parse_rate(rate, true);
+            long ops_per_second = ops == null ? this.sessionLimiter.ops_rate() : parse_rate(ops, false);
+            if (bytes_per_second < 0 || ops_per_second < 0) {
+                fail("限速的值不合法：/rate 是每秒字节数，例如 200M，/ops 是每秒文件数；off 表示不限。");
+                return false;
+            }
+            limiter = new RateLimiter(bytes_per_second, ops_per_second);
+        }
+        this.limiter = limiter;
+        if (this.job != null) {
+            this.job.limit(limiter);
+        }
+        return true;
+    }
+
+    // 解析速率，off 表示不限（0），不合法时返回 -1
+    private long parse_rate(String value, boolean bytes) {
+        if (value.equalsIgnoreCase("off")) {
+            return 0;
+        }
+        return bytes ? parse_size(value) : parse_positive(value);
+    }
+
+    private void handleRate(ArrayList<String> tokens) {
+        tokens = new ArrayList<>(tokens);
+        String job_id = take_option(tokens, "/job");
+        String ops = take_option(tokens, "/ops");
+        if (tokens.size() > 2 || "".equals(job_id) || "".equals(ops)) {
+            fail("命令rate：rate [字节速率|off] [/ops 每秒文件数|off] [/job 任务编号]。");
+            return;
+        }
+
+        RateLimiter limiter = this.sessionLimiter;
+        String name = "会话默认";
+        if (job_id != null) {
+            Job job = find_job(job_id);
+            if (job == null) {
+                return;
+            }
+            if (job.limiter() == null) {
+                fail("任务" + job.id + "还没有开始拷贝或删除。");
+                return;
+            }
+            limiter = job.limiter();
+            name = "任务" + job.id;
+        }
+
+        if (tokens.size() == 1 && ops == null) {
+            System.out.println(name + "：" + limiter);
+            if (job_id == null) {
+                synchronized (this.jobs) {
+                    for (Job job : this.jobs.values()) {
+                        if (!job.done()) {
+                            System.out.println("任务" + job.id + "：" + (job.limiter() == limiter ? "使用会话默认" : job.limiter()));
+                        }
+                    }
+                }
+            }
+            return;
+        }
+
+        long bytes_per_second = tokens.size() == 2 ? parse_rate(tokens.get(1), true) : -1;
+        long ops_per_second = ops != null ? parse_rate(ops, false) : -1;
+        if ((tokens.size() == 2 && bytes_per_second < 0) || (ops != null && ops_per_second < 0)) {
+            fail("限速的值不合法：字节速率例如 200M，/ops 是每秒文件数；off 表示不限。");
+            return;
+        }
+        // 使用会话默认的任务单独调整时，先给它一个自己的限速器，不影响其它任务
+        if (limiter == this.sessionLimiter && job_id != null) {
+            Job job = find_job(job_id);
+            limiter = new RateLimiter(this.sessionLimiter.bytes_rate(), this.sessionLimiter.ops_rate());
+            job.limit(limiter);
+        }
+        limiter.set(bytes_per_second, ops_per_second);
+        System.out.println(name + "：" + limiter);
+    }
+
+    private void handlePack(ArrayList<String> tokens) throws IOException {
+        tokens = new ArrayList<>(tokens);
+        boolean overwrite = take_switch(tokens, "/o") != null;
+        String parallel = take_switch(tokens, "/p");
+        if (tokens.size() != 3) {
+            fail("命令pack把文件或文件夹打成压缩包，是双参命令：pack 文件或文件夹 压缩包。");
+            return;
+        }
+        int threads = parallel == null || parallel.isEmpty() ? this.parallelism : parse_positive(parallel);
+        if (threads <= 0) {
+            fail("开关/p的线程数不合法。");
+            return;
+        }
+
+        File src = new_file(this.currentDir, tokens.get(1));
+        File archive = new_file(this.currentDir, tokens.get(2));
+        if (!src.exists()) {
+            fail("想要打包的文件或文件夹不存在。");
+            return;
+        }
+        if (!Packer.is_zip(archive.toPath()) && !Packer.is_tar_gz(archive.toPath())) {
+            fail("压缩包的名称要以 .zip、.tar.gz 或 .tgz 结尾。");
+            return;
+        }
+        File archive_dir = archive.getParentFile();
+        if (archive_dir == null || !archive_dir.isDirectory()) {
+            fail("压缩包所在的文件夹不存在。");
+            return;
+        }
+        // 和拷贝一样：被打包的文件夹是压缩包所在文件夹本身或其任意层级的祖先时，压缩包会把自己打进去
+        if (src.isDirectory() && is_Ancestor(archive_dir, src)) {
+            fail("压缩包不能写在被打包的文件夹里面，逻辑错误。");
+            return;
+        }
+        // 压缩包就是要打包的文件本身时，会把自己打进去
+        if (this.resolver.canonical(archive).equals(this.resolver.canonical(src))) {
+            fail("压缩包不能是被打包的文件本身，逻辑错误。");
+            return;
+        }
+        if (archive.isDirectory()) {
+            fail("已经有和压缩包同名的文件夹，没有写入任何内容。");
+            return;
+        }
+        if (archive.exists() && !overwrite) {
+            fail("压缩包已经存在，没有写入任何内容。加开关/o覆盖。");
+            return;
+        }
+
+        Progress progress = progress();
+        long skipped = Packer.pack(this.resolver.canonical(src), archive.toPath(), scan_pool(threads), progress);
+        print_rate(progress);
+        if (skipped > 0) {
+            System.out.println("跳过了" + skipped + "个符号链接或特殊文件。");
+        }
+        long size = Files.size(archive.toPath());
+        long bytes = progress.bytes.sum();
+        System.out.println("压缩包" + formatFileSize(size) + (bytes > 0 ? String.format("，是原大小的%.1f%%", 100.0 * size / bytes) : "") + "。");
+        System.out.println("打包成功。");
+    }
+
+    private void handleIndex(ArrayList<String> tokens) throws IOException {
+        tokens = new ArrayList<>(tokens);
+        String parallel = take_switch(tokens, "/p");
+        int threads = parallel == null || parallel.isEmpty() ? this.parallelism : parse_positive(parallel);
+        if (threads <= 0) {
+            fail("开关/p的线程数不合法。");
+            return;
+        }
+        String action = tokens.size() > 1 ? tokens.get(1).toLowerCase() : "";
+        switch (action) {
+            case "build":
+            case "open": {
+                if (tokens.size() != 3) {
+                    fail("index " + action + " 后面需要一个文件夹。");
+                    return;
+                }
+                File dir = new_file(this.currentDir, tokens.get(2));
+                if (!dir.isDirectory()) {
+                    fail("文件夹不存在。");
+                    return;
+                }
+                Path root = this.resolver.canonical(dir);
+                long start = System.nanoTime();
+                if (action.equals("build")) {
+                    this.treeIndex = TreeIndex.build(root, index_dir(), scan_pool(threads), null).index;
+                } else {
+                    Path file = TreeIndex.latest(index_dir(), root);
+                    if (file == null) {
+                        fail("没有这个文件夹的索引，先用 index build 建立。");
+                        return;
+                    }
+                    TreeIndex index = TreeIndex.open(file);
+                    // 文件名只是根路径的散列，以文件头里的根路径为准
+                    if (!index.root.equals(root)) {
+                        fail("索引文件" + file + "属于" + index.root + "，不是这个文件夹的索引。");
+                        return;
+                    }
+                    this.treeIndex = index;
+                }
+                System.out.println(index_summary() + "，用时" + format_nanos(System.nanoTime() - start) + "。");
+                break;
+            }
+            case "refresh": {
+                if (this.treeIndex == null) {
+                    fail("没有打开的索引。");
+                    return;
+                }
+                long start = System.nanoTime();
+                TreeIndex.BuildResult result = TreeIndex.build(this.treeIndex.root, this.treeIndex.file.getParent(), scan_pool(threads), this.treeIndex);
+                this.treeIndex = result.index;
+                System.out.println(index_summary() + "，重新列举" + result.listed + "个文件夹，沿用" + result.reused
+                        + "个，用时" + format_nanos(System.nanoTime() - start) + "。");
+                break;
+            }
+            case "size": {
+                if (this.treeIndex == null) {
+                    fail("没有打开的索引。");
+                    return;
+                }
+                File file = tokens.size() > 2 ? new_file(this.currentDir, tokens.get(2)) : this.currentDir;
+                int id = index_lookup(file);
+                if (id < 0) {
+                    fail("索引中没有" + file + "。");
+                    return;
+                }
+                TreeStats stats = this.treeIndex.stats(id);
+                System.out.println(this.treeIndex.path(id) + "：" + stats.dirNum + "个文件夹，" + stats.fileNum + "个文件，共"
+                        + formatFileSize(stats.size) + String.format("（索引建立于%tF %<tT）", this.treeIndex.built));
+                break;
+            }
+            case "close":
+                this.treeIndex = null;
+                System.out.println("索引已关闭。");
+                break;
+            case "":
+                System.out.println(this.treeIndex == null ? "没有打开的索引。" : index_summary() + "。");
+                break;
+            default:
+                fail("命令index：index build 文件夹 | index open 文件夹 | index refresh | index size [路径] | index close，无参显示状态。");
+        }
+    }
+
+    // 索引文件默认放在 ~/.minidos/index 下，可用 -Dminidos.index.dir 指定
+    private static Path index_dir() {
+        return Paths.get(System.getProperty("minidos.index.dir", System.getProperty("user.home") + "/.minidos/index"));
+    }
+
+    private String index_summary() {
+        TreeIndex index = this.treeIndex;
+        TreeStats stats = index.stats(0);
+        return "索引" + index.root + String.format("（建立于%tF %<tT）", index.built) + "：共" + index.count + "项，"
+                + stats.dirNum + "个文件夹，" + stats.fileNum + "个文件，" + formatFileSize(stats.size) + "；名称表"
+                + index.nameCount + "个不同的名称，" + formatFileSize(index.nameBytes) + "，索引文件" + formatFileSize(index.fileBytes);
+    }
+
+    // 在打开的索引中查找 file，不访问磁盘；没有打开索引或索引中没有时返回 -1
+    private int index_lookup(File file) {
+        return this.treeIndex == null ? -1 : this.treeIndex.lookup(indexed_path(file));
+    }
+
+    // 索引里的路径按字面规范化，不解析符号链接
+    private static Path indexed_path(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private void handleUnpack(ArrayList<String> tokens) throws IOException {
+        tokens = new ArrayList<>(tokens);
+        boolean overwrite = take_switch(tokens, "/o") != null;
+        if (tokens.size() != 2 && tokens.size() != 3) {
+            fail("命令unpack解开压缩包，是单参或双参命令：unpack 压缩包 [目的文件夹]。");
+            return;
+        }
+
+        File archive = new_file(this.currentDir, tokens.get(1));
+        File des = tokens.size() == 2 ? this.currentDir : new_file(this.currentDir, tokens.get(2));
+        if (!archive.isFile()) {
+            fail("压缩包不存在。");
+            return;
+        }
+        if (!Packer.is_zip(archive.toPath()) && !Packer.is_tar_gz(archive.toPath())) {
+            fail("只能解开 .zip、.tar.gz 或 .tgz 压缩包。");
+            return;
+        }
+        if (!des.isDirectory()) {
+            fail("目的地文件夹不存在。");
+            return;
+        }
+
+        // 和拷贝预检一样，写入任何内容之前列出全部冲突
+        Path dest = this.resolver.canonical(des);
+        Unpacker.Plan plan = Unpacker.plan(archive.toPath(), dest);
+        print_conflicts("越出目的文件夹或经过符号链接的路径", plan.outside, 20);
+        print_conflicts("文件和文件夹同名、无法解压", plan.clashes, 20);
+        if (!overwrite) {
+            print_conflicts("目的地已有的同名文件", plan.overwrites, 20);
+        }
+        if (!plan.outside.isEmpty() || !plan.clashes.isEmpty()) {
+            fail("存在无法解压的项，没有写入任何内容。");
+            return;
+        }
+        if (!plan.overwrites.isEmpty() && !overwrite) {
+            fail("没有写入任何内容。加开关/o覆盖这些文件。");
+            return;
+        }
+
+        Progress progress = progress();
+        long skipped = Unpacker.unpack(archive.toPath(), dest, overwrite, progress);
+        this.resolver.invalidate();
+        print_rate(progress);
+        if (skipped > 0) {
+            System.out.println("跳过了" + skipped + "个链接或特殊文件。");
         }
+        System.out.println("解压成功。");
     }
 
     private void handleMd(ArrayList<String> tokens) throws IOException {
         // 严格要求单参
         if (tokens.size() != 2) {
-            System.out.println("命令md用于在当前工作目录下创建一个子目录，其为单参命令");
+            fail("命令md用于在当前工作目录下创建一个子目录，其为单参命令");
         } else {
             // 确保路径格式正确
             if (tokens.get(1).matches(".*[/:\\\\].*")) {
-                System.out.println("将要创建的文件夹必须在当前工作目录下，且不能含有正斜杠、反斜杠和冒号。");
+                fail("将要创建的文件夹必须在当前工作目录下，且不能含有正斜杠、反斜杠和冒号。");
                 return;
             }
 
@@ -201,7 +1312,7 @@ public class MiniDOS {
             if (new_dir.mkdir()) {
                 System.out.println("新文件夹创建成功。");
             } else {
-                System.out.println("该文件夹已存在。");
+                fail("该文件夹已存在。");
             }
         }
     }
@@ -209,11 +1320,11 @@ public class MiniDOS {
     private void handleRn(ArrayList<String> tokens) throws IOException {
         // 要求双参
         if (tokens.size() != 3) {
-            System.out.println("命令rn用于把当前工作目录中的一个文件或文件夹重命名。是一个双参命令，第1个参数表示原文件（夹）名称，第2个参数表示命名后的名称。");
+            fail("命令rn用于把当前工作目录中的一个文件或文件夹重命名。是一个双参命令，第1个参数表示原文件（夹）名称，第2个参数表示命名后的名称。");
         } else {
             // 更改的路径得符合要求
             if (tokens.get(2).matches(".*[/:\\\\].*")) {
-                System.out.println("将要创建的文件夹必须在当前工作目录下，且不能含有正斜杠、反斜杠和冒号。");
+                fail("将要创建的文件夹必须在当前工作目录下，且不能含有正斜杠、反斜杠和冒号。");
                 return;
             }
 
@@ -221,26 +1332,54 @@ public class MiniDOS {
             File new_item = new_file(this.currentDir, tokens.get(2));
 
             if (!old_item.exists()) {
-                System.out.println("源文件不存在。");
+                fail("源文件不存在。");
             } else if (new_item.exists()) {
-                System.out.println("修改后的名称已经存在。");
+                fail("修改后的名称已经存在。");
             } else {
                 if (old_item.renameTo(new_item)) {
+                    this.resolver.invalidate();
                     System.out.println("修改名称成功");
+                } else {
+                    fail("修改名称失败。");
                 }
             }
         }
     }
 
     private void handleCopy(ArrayList<String> tokens, File cur_dir) throws IOException {
+        // 开关 /a 表示保留修改时间和权限，/resume 表示根据拷贝日志继续上次中断的拷贝
+        tokens = new ArrayList<>(tokens);
+        CopyOptions options = new CopyOptions();
+        options.keepAttrs = take_switch(tokens, "/a") != null;
+        options.resume = take_switch(tokens, "/resume") != null;
+        // 开关 /sync 表示增量同步，/hash 表示比较内容摘要，/purge 表示删除目的地中多余的文件（夹）
+        options.sync = take_switch(tokens, "/sync") != null;
+        options.hash = take_switch(tokens, "/hash") != null;
+        options.purge = take_switch(tokens, "/purge") != null;
+        // 修改时间的容差可以在启动时用 -Dminidos.copy.window=毫秒数 给出
+        options.modifyWindow = Long.getLong("minidos.copy.window", -1);
+        // 开关 /o 表示覆盖目的地中的同名文件，/plan 表示只预检不拷贝
+        options.overwrite = take_switch(tokens, "/o") != null;
+        options.planOnly = take_switch(tokens, "/plan") != null;
+        if ((options.hash || options.purge) && !options.sync) {
+            fail("开关/hash和/purge只能和/sync一起使用。");
+            return;
+        }
+        // 同步依靠修改时间判断变化，拷贝时必须保留修改时间
+        options.keepAttrs |= options.sync;
+        handleCopy(tokens, cur_dir, options);
+    }
+
+    // 返回是否真正完成了拷贝，move 只在拷贝完成后才删除源文件（夹）
+    private boolean handleCopy(ArrayList<String> tokens, File cur_dir, CopyOptions options) throws IOException {
         // 显示用法
         if (tokens.size() == 1) {
-            System.out.println("命令copy实现文件和文件夹的拷贝，是单参或双参的命令。");
+            fail("命令copy实现文件和文件夹的拷贝，是单参或双参的命令。");
         }
 
         // 不符合参数条件
         else if (tokens.size() > 3) {
-            System.out.println("命令copy实现文件和文件夹的拷贝，是单参或双参的命令。");
+            fail("命令copy实现文件和文件夹的拷贝，是单参或双参的命令。");
         }
 
         // 单参
@@ -250,38 +1389,36 @@ public class MiniDOS {
 
             // 文件不存在
             if (!cur_file.exists()) {
-                System.out.println("该文件或文件夹不存在。");
+                fail("该文件或文件夹不存在。");
                 throw new IOException("该文件或文件夹不存在");
             }
 
-            // 命名冲突
-            if (file_exists(cur_file, cur_dir)) {
-                System.out.println("想要拷贝的文件或文件夹在当前工作目录中已经存在。");
+            // 命名冲突，续拷或同步时目的地里本来就有同名文件（夹）
+            if (!options.resume && !options.sync && file_exists(cur_file, cur_dir)) {
+                fail("想要拷贝的文件或文件夹在当前工作目录中已经存在。");
                 throw new IOException("想要拷贝的文件或文件夹在当前工作目录中已经存在");
             }
 
             // 逻辑爆炸
             else if (this.path_explode(cur_file)) {
-                System.out.println("拷贝逻辑爆炸。");
+                fail("拷贝逻辑爆炸。");
                 throw new IOException("逻辑文件爆炸");
             }
 
             // 开始复制
             else {
+                File des = new_file(cur_dir, cur_file.getName());
+                if (!preflight(cur_file, des, options)) {
+                    return false;
+                }
                 if (cur_file.isFile()) {
-                    try {
-                        copyFile(cur_file, new_file(cur_dir, cur_file.getName()));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    print_rate(copyFile(cur_file, des, options));
                     System.out.println("文件拷贝成功。");
+                    return true;
                 } else if (cur_file.isDirectory()) {
-                    try {
-                        copyDirectory(cur_file, cur_dir);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    print_rate(copyDirectory(cur_file, des, options));
                     System.out.println("文件拷贝成功。");
+                    return true;
                 }
             }
         }
@@ -293,183 +1430,118 @@ public class MiniDOS {
 
             // 执行操作的文件不存在
             if (!src.exists() || !des.exists()) {
-                System.out.println("想执行操作的文件或文件夹不存在。");
+                fail("想执行操作的文件或文件夹不存在。");
             }
 
             // 对文件执行操作
             else if (src.isFile()) {
-                try {
-                    File des_file = new_file(des, src.getName());
-                    copyFile(src, des_file);
-                    System.out.println("文件拷贝操作成功。");
-                } catch (IOException e) {
-                    e.printStackTrace();
+                File des_file = new_file(des, src.getName());
+                if (!preflight(src, des_file, options)) {
+                    return false;
                 }
+                print_rate(copyFile(src, des_file, options));
+                System.out.println("文件拷贝操作成功。");
+                return true;
             }
 
             // 对文件夹操作
             else if(src.isDirectory()){
                     // 如果源文件（夹）是目的地文件夹本身或其任意层级的祖先，则报告给用户逻辑错误。
-                    if (src.getCanonicalPath().equals(des.getCanonicalPath()) || is_Ancestor(des, src)) {
-                        System.out.println("源文件（夹）是目的地文件夹本身或其任意层级的祖先， 逻辑错误。");
+                    if (is_Ancestor(des, src)) {
+                        fail("源文件（夹）是目的地文件夹本身或其任意层级的祖先， 逻辑错误。");
                         throw new IOException("非法的复制：源文件夹是目标的祖先或自身。");
                     }
 
-                    // 如果在目的地文件夹中，源文件（夹）同名的文件（夹）已存在，则也需要报告给用户。
-                    if (file_exists(src, des)) {
-                        System.out.println("源文件（夹）同名的文件（夹）已存在。");
+                    // 目的地已有同名文件夹时合并进去，预检列出其中所有会覆盖或无法拷贝的项
+                    File des_dir = new_file(des, src.getName());
+                    if (!preflight(src, des_dir, options)) {
+                        return false;
                     }
 
-                    copyDirectory(src, des);
+                    print_rate(copyDirectory(src, des_dir, options));
                     System.out.println("文件夹拷贝操作成功。");
+                    return true;
             }
         }
+
+        return false;
     }
 
-    private void handleCopy_2(ArrayList<String> tokens, File cur_dir, File f_2) throws IOException {
-        // 显示用法
-        if (tokens.size() == 1) {
-            System.out.println("命令copy实现文件和文件夹的拷贝，是单参或双参的命令。");
+    private void handleMove(ArrayList<String> tokens) throws IOException {
+        if(tokens.size() == 1) {
+            fail("命令move用于把一个文件（夹）移动至目的地文件夹。它是单参和双参命令。");
+            return;
         }
-
-        // 不符合参数条件
-        else if (tokens.size() > 3) {
-            System.out.println("命令copy实现文件和文件夹的拷贝，是单参或双参的命令。");
+        else if(tokens.size() > 3) {
+            fail("命令move是单参和双参指令。");
+            return;
         }
 
-        // 单参
-        else if (tokens.size() == 2) {
-            // 相对路径 绝对路径都可以
-            File cur_file = new_file(cur_dir, tokens.get(1));
-
-            // 文件不存在
-            if (!cur_file.exists()) {
-                System.out.println("该文件或文件夹不存在。");
-                throw new IOException("该文件或文件夹不存在");
-            }
-
-            // 命名冲突
-            if (file_exists(cur_file, cur_dir)) {
-                System.out.println("想要拷贝的文件或文件夹在当前工作目录中已经存在。");
-                throw new IOException("想要拷贝的文件或文件夹在当前工作目录中已经存在");
-            }
-
-            // 逻辑爆炸
-            else if (this.path_explode(cur_file)) {
-                System.out.println("拷贝逻辑爆炸。");
-                throw new IOException("拷贝逻辑爆炸。");
-            }
-
-            // 开始复制
-            else {
-                if (cur_file.isFile()) {
-                    try {
-                        copyFile(cur_file, new_file(cur_dir, cur_file.getName()));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    System.out.println("文件拷贝成功。");
-                } else if (cur_file.isDirectory()) {
-                    try {
-                        copyDirectory(cur_file, f_2);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    System.out.println("文件拷贝成功。");
-                }
-            }
+        // 单参向当前目录移动，双参 src -> des
+        File src = new_file(this.currentDir, tokens.get(1));
+        File des_dir = (tokens.size() == 2) ? this.currentDir : new_file(this.currentDir, tokens.get(2));
+        if (!this.check_move(src, des_dir)) {
+            return;
         }
 
-        // 双参
-        else {
-            File src = new_file(cur_dir, tokens.get(1));
-            File des = new_file(cur_dir, tokens.get(2));
-
-            // 执行操作的文件不存在
-            if (!src.exists() || !des.exists()) {
-                System.out.println("想执行操作的文件或文件夹不存在。");
-            }
-
-            // 对文件执行操作
-            else if (src.isFile()) {
-                try {
-                    File des_file = new_file(des, src.getName());
-                    copyFile(src, des_file);
-                    System.out.println("文件拷贝操作成功。");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            // 对文件夹操作
-            else if(src.isDirectory()){
-                // 如果源文件（夹）是目的地文件夹本身或其任意层级的祖先，则报告给用户逻辑错误。
-                if (src.getCanonicalPath().equals(des.getCanonicalPath()) || is_Ancestor(des, src)) {
-                    System.out.println("源文件（夹）是目的地文件夹本身或其任意层级的祖先， 逻辑错误。");
-                    throw new IOException("非法的复制：源文件夹是目标的祖先或自身。");
-                }
-
-                // 如果在目的地文件夹中，源文件（夹）同名的文件（夹）已存在，则也需要报告给用户。
-                if (file_exists(src, des)) {
-                    System.out.println("源文件（夹）同名的文件（夹）已存在。");
-                }
+        // 同一文件系统内直接改名，只改元数据，与文件大小无关
+        File target = new_file(des_dir, src.getName());
+        try {
+            Files.move(src.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            this.resolver.invalidate();
+            System.out.println("移动成功。");
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            // 跨文件系统，退回到先拷贝再删除
+        }
 
-                copyDirectory(src, f_2);
-                System.out.println("文件夹拷贝操作成功。");
+        try {
+            // 拷贝文件或文件夹，没有完成拷贝就不能删除源文件（夹）
+            CopyOptions options = new CopyOptions();
+            options.keepAttrs = true;
+            if (!this.handleCopy(tokens, this.currentDir, options)) {
+                return;
             }
+        } catch (IOException e) {
+            fail("移动失败：" + e.getMessage()); // 出现异常，终止后续执行，不删除源文件
+            return;
         }
+
+        ArrayList<String> tokens_1 = new ArrayList<>();
+        tokens_1.add(tokens.get(1));
+        this.forceDel(tokens_1, this.currentDir);
     }
 
-    private void handleMove(ArrayList<String> tokens) throws IOException {
-        if(tokens.size() == 1) {
-            System.out.println("命令move用于把一个文件（夹）移动至目的地文件夹。它是单参和双参命令。");
+    // 移动前的检查，改名和拷贝两条路径都要先通过
+    private boolean check_move(File src, File des_dir) throws IOException {
+        if (!src.exists()) {
+            fail("想要移动的文件或文件夹不存在。");
+            return false;
         }
-        else if(tokens.size() > 3) {
-            System.out.println("命令move是单参和双参指令。");
+        if (!des_dir.isDirectory()) {
+            fail("目的地文件夹不存在。");
+            return false;
         }
 
-        // 单参 向当前目录移动
-        else if(tokens.size() == 2) {
-            try {
-                File f = new_file(this.currentDir, tokens.get(1));
-                // 拷贝文件
-                if(f.isFile()) {
-                    this.handleCopy(tokens, this.currentDir);
-                }
-
-                // 拷贝文件夹
-                else if(f.isDirectory()) {
-                    File f_2 = new_file(this.currentDir, f.getName());
-                    this.handleCopy_2(tokens, this.currentDir, f_2);
-                }
-            } catch (IOException e) {
-                return; // 出现异常，终止后续执行
-            }
-            this.forceDel(tokens, this.currentDir);
+        // 不能移动当前工作目录及其任意一级祖先
+        if (this.path_explode(src)) {
+            fail("不能移动当前工作目录或其任意层级的祖先。");
+            return false;
         }
 
-        // 双参 src -> des
-        else {
-            try {
-                File f = new_file(this.currentDir, tokens.get(1));
-                // 拷贝文件
-                if(f.isFile()) {
-                    this.handleCopy(tokens, this.currentDir);
-                }
-
-                // 拷贝文件夹
-                else if(f.isDirectory()) {
-                    File f_2 = new_file(new_file(this.currentDir, tokens.get(2)), f.getName());
-                    this.handleCopy_2(tokens, this.currentDir, f_2);
-                }
-            } catch (IOException e) {
-                return; // 出现异常，终止后续执行
-            }
+        // 源文件（夹）是目的地文件夹本身或其任意层级的祖先
+        if (is_Ancestor(des_dir, src)) {
+            fail("源文件（夹）是目的地文件夹本身或其任意层级的祖先， 逻辑错误。");
+            return false;
+        }
 
-            ArrayList<String> tokens_1 = new ArrayList<>();
-            tokens_1.add(tokens.get(1));
-            this.forceDel(tokens_1, this.currentDir);
+        // 目的地文件夹中已有同名的文件（夹）
+        if (file_exists(src, des_dir)) {
+            fail("目的地文件夹中已经存在同名的文件（夹）。");
+            return false;
         }
+
+        return true;
     }
 
     private void forceDel(ArrayList<String> tokens, File cur_dir) throws IOException {
@@ -479,43 +1551,42 @@ public class MiniDOS {
 
         // 文件不存在
         if(!cur_file.exists()) {
-            System.out.println("文件不存在。");
+            fail("文件不存在。");
         }
 
         // 文件存在
         else {
-            this.delete_file_Or_dir(cur_file);
-            if (cur_file.exists()) {
-                System.out.println("删除失败。");
-            }
-            else {
-                System.out.println("删除成功。");
-            }
+            this.print_delete_result(this.delete_file_Or_dir(cur_file));
         }
     }
 
     private void handleDel(ArrayList<String> tokens, Scanner scanner, File cur_dir) throws IOException {
         if (tokens.size() == 1) {
-            System.out.println("命令del用于级联删除一个文件或文件夹，是一个单参命令。");
+            fail("命令del用于级联删除一个文件或文件夹，是一个单参命令。");
         } else if (tokens.size() > 2) {
-            System.out.println("del命令是一个单参命令，请重新输入。");
+            fail("del命令是一个单参命令，请重新输入。");
         } else {
             File cur_file = new_file(cur_dir, tokens.get(1));
             // 根路径不能删除
-            if (cur_file.getCanonicalPath().equals("/")) {
-                System.out.println("不能删除根路径。");
+            if (this.resolver.canonical(cur_file).getNameCount() == 0) {
+                fail("不能删除根路径。");
             }
 
             // 当前目录和当前目录的任何祖先文件夹都不能删除
-            else if (cur_file.getCanonicalPath().equals(cur_dir.getCanonicalPath()) || is_Ancestor(cur_dir, cur_file)) {
-                System.out.println("不能删除当前工作目录或其任意层级的祖先。");
+            else if (is_Ancestor(cur_dir, cur_file)) {
+                fail("不能删除当前工作目录或其任意层级的祖先。");
             }
 
             // 循环提问Y/N
             else {
                 while (true) {
-                    System.out.println("将要删除文件或文件夹，及文件夹下面的所有内容，确定吗?(Y/N)");
-                    String input = scanner.nextLine().trim();
+                    String input;
+                    if (this.assumeYes) {
+                        input = "y";
+                    } else {
+                        System.out.println("将要删除文件或文件夹，及文件夹下面的所有内容，确定吗?(Y/N)");
+                        input = scanner.nextLine().trim();
+                    }
                     if (input.isEmpty()) continue;
 
                     // 处理Y操作
@@ -524,20 +1595,14 @@ public class MiniDOS {
 
                         // 文件不存在
                         if (!cur_file.exists()) {
-                            System.out.println("所给参数表示的文件（夹）不存在。");
+                            fail("所给参数表示的文件（夹）不存在。");
                             break;
                         }
 
                         // 文件存在
                         else {
-                            this.delete_file_Or_dir(cur_file);
-                            if (cur_file.exists()) {
-                                System.out.println("删除失败。");
-                                break;
-                            } else {
-                                System.out.println("删除成功。");
-                                break;
-                            }
+                            this.print_delete_result(this.delete_file_Or_dir(cur_file));
+                            break;
                         }
                     }
 
@@ -560,227 +1625,370 @@ public class MiniDOS {
 
     // 判断输入路径
     private File new_file(File prefix, String file_name) throws IOException {
-        File path = new File(file_name);
+        // 绝对路径不做处理，相对路径加上前缀目录的规范路径（有缓存）
+        return this.resolver.resolve(prefix, file_name);
+    }
 
-        if (path.isAbsolute()) {
-            // 绝对路径，不做处理
-            return path;
+    // 取出形如 /p 或 /p:N 的开关（不区分大小写），返回冒号后的值，无值时为空串；没有该开关返回 null
+    private String take_switch(ArrayList<String> tokens, String name) {
+        for (int i = 1; i < tokens.size(); i++) {
+            String token = tokens.get(i).toLowerCase();
+            if (token.equals(name)) {
+                tokens.remove(i);
+                return "";
+            }
+            if (token.startsWith(name + ":")) {
+                tokens.remove(i);
+                return token.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
 
-        } else {
-            // 相对路径，加上前缀目录
-            return new File(prefix.getCanonicalPath() + "/" + file_name);
+    // 带值的开关，/name:value 和 /name value 两种写法都可以；没有这个开关时返回 null，没有给值时返回 ""
+    private String take_option(ArrayList<String> tokens, String name) {
+        for (int i = 1; i + 1 < tokens.size(); i++) {
+            if (tokens.get(i).equalsIgnoreCase(name) && !tokens.get(i + 1).startsWith("/")) {
+                tokens.remove(i);
+                return tokens.remove(i).toLowerCase();
+            }
         }
+        return take_switch(tokens, name);
     }
 
-    private String formatFileSize(long size) {
-        if (size >= 1024L * 1024 * 1024)
-            return String.format("%.2fG", size / (1024.0 * 1024 * 1024));
-        else if (size >= 1024L * 1024)
-            return String.format("%.2fM", size / (1024.0 * 1024));
-        else if (size >= 1024)
-            return String.format("%.2fK", size / 1024.0);
-        else
-            return size + "B";
+    // 解析正整数，不合法时返回 -1
+    private int parse_positive(String value) {
+        try {
+            int n = Integer.parseInt(value);
+            return n > 0 ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    private void delete_file_Or_dir(File file) {
-        if (file.isDirectory()) {
-            File[] children = file.listFiles();
-            if (children == null) {
-                file.delete(); // 可以直接删除空文件夹
-            } else {
-                for (File child : children) {
-                    delete_file_Or_dir(child);
-                }
+    // 按并行度复用同一个线程池，并行度变化时才重建
+    private ForkJoinPool scan_pool(int parallelism) {
+        if (parallelism <= 0) {
+            return null;
+        }
+        if (this.scanPool == null || this.scanPool.getParallelism() != parallelism) {
+            if (this.scanPool != null) {
+                this.scanPool.shutdown();
             }
+            this.scanPool = new ForkJoinPool(parallelism);
         }
-
-        // 如果是文件夹就直接删除
-        file.delete();
+        return this.scanPool;
     }
 
-    private void calculate_dir(ArrayList<ArrayList<Object>> line, File cur_file) {
-        if (cur_file == null) return;
-
-        File[] files = cur_file.listFiles();
-        if (files == null) return;  // 目录为空或无权限访问
-
-        for (File file : files) {
-            ArrayList<Object> row = new ArrayList<>();
-
-            // 文件名
-            row.add(file.getName());
-
-            // 是否为文件夹
-            row.add(file.isDirectory() ? "文件夹" : "文件");
-
-            // 计算最大深度（仅对文件夹有意义）
-            row.add(getMaxDepth(file, 1));
-
-            // 子文件夹数量
-            row.add(getDirNum(file));
-
-            // 所有文件数量
-            row.add(getFileNum(file));
-
-            // 所有文件大小总和
-            row.add(formatFileSize(getAllFileSize(file)));
-
-            // 加入到主表
-            line.add(row);
+    // 第一次使用时从磁盘读入缓存，并在程序退出时写回
+    private StatsCache stats_cache() {
+        if (this.statsCache == null) {
+            Path cache_file = Paths.get(System.getProperty("minidos.cache.file",
+                    System.getProperty("user.home") + "/.minidos/dir-stats.cache"));
+            StatsCache cache = new StatsCache(cache_file, Integer.getInteger("minidos.cache.size", 200000));
+            cache.load();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    cache.save();
+                } catch (IOException e) {
+                    System.out.println("统计缓存写回失败：" + e.getMessage());
+                }
+            }));
+            this.statsCache = cache;
         }
+        return this.statsCache;
     }
 
-    private void calculate_file(ArrayList<ArrayList<Object>> line, File cur_file) {
-        if (cur_file == null) return;
-
-        ArrayList<Object> row = new ArrayList<>();
+    private static TreeStats join(Future<TreeStats> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new TreeStats();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-        // 文件名
-        row.add(cur_file.getName());
+    // 解析 200M、1G、4096 这样的大小，单位 K、M、G、T 按 1024 进位，不合法或超出 long 的范围时返回 -1
+    static long parse_size(String text) {
+        Matcher matcher = SIZE_PATTERN.matcher(text.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
 
-        // 是否为文件夹
-        row.add(cur_file.isDirectory() ? "文件夹" : "文件");
+        long value = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2).toUpperCase();
+        int shift = unit.isEmpty() ? 0 : " KMGT".indexOf(unit.charAt(0)) * 10;
+        try {
+            return Math.multiplyExact(value, 1L << shift);
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
 
-        // 计算最大深度（仅对文件夹有意义）
-        row.add(getMaxDepth(cur_file, 1));
+    // 读取表示大小的系统属性，没有设置或不合法时用默认值
+    static long size_property(String name, String default_value) {
+        long size = parse_size(System.getProperty(name, default_value));
+        return size > 0 ? size : parse_size(default_value);
+    }
 
-        // 子文件夹数量
-        row.add(getDirNum(cur_file));
+    static String formatFileSize(long size) {
+        if (size >= 1024L * 1024 * 1024)
+            return String.format("%.2fG", size / (1024.0 * 1024 * 1024));
+        else if (size >= 1024L * 1024)
+            return String.format("%.2fM", size / (1024.0 * 1024));
+        else if (size >= 1024)
+            return String.format("%.2fK", size / 1024.0);
+        else
+            return size + "B";
+    }
 
-        // 所有文件数量
-        row.add(getFileNum(cur_file));
+    // 并行删除，返回删除失败的路径及原因
+    private List<String> delete_file_Or_dir(File file) {
+        this.resolver.invalidate();
+        ForkJoinPool pool = scan_pool(this.parallelism);
+        Progress progress = new Progress();
+        if (this.job != null) {
+            // 后台删除先统计一遍，有了总数才能估算剩余时间
+            Path path = file.toPath();
+            BasicFileAttributes attrs = TreeScanner.read_attrs(path);
+            TreeStats stats = join(new TreeScanner(pool, null, null).submit(path, attrs));
+            long total = stats.fileNum + stats.dirNum + (attrs != null && attrs.isDirectory() ? 1 : 0);
+            progress = this.job.begin("删除", total, -1);
+        } else {
+            progress.limiter = this.limiter;
+        }
+        return new DeleteEngine(pool, progress).delete(file.toPath());
+    }
 
-        // 所有文件大小总和
-        row.add(formatFileSize(getAllFileSize(cur_file)));
+    // 全部删除成功，或者列出没有删除的路径（最多列出前20项）
+    private void print_delete_result(List<String> failures) {
+        if (failures.isEmpty()) {
+            System.out.println("删除成功。");
+            return;
+        }
 
-        // 加入到主表
-        line.add(row);
+        fail("删除失败，以下" + failures.size() + "项没有删除：");
+        for (int i = 0; i < failures.size() && i < 20; i++) {
+            System.out.println("  " + failures.get(i));
+        }
+        if (failures.size() > 20) {
+            System.out.println("  ……");
+        }
     }
 
-    // 表示des中有与src相同的文件
-    private boolean file_exists(File src, File des) {
-        File[] children = des.listFiles();
-        if (children == null) {
-            return false;
+    // dir /i：各项的统计在建立索引时已经算好，直接读出；rows 的用法同 calculate_dir
+    private void indexed_dir(String format, DirRows rows, File file) throws IOException {
+        int id = index_lookup(file);
+        if (id < 0) {
+            fail("索引中没有" + file + "。");
+            return;
         }
-
-        for (File child : children) {
-            if (child.getName().equals(src.getName())) {
-                return true;
+        TreeIndex index = this.treeIndex;
+        DirPrinter printer = new DirPrinter(format, System.out);
+        printer.header();
+        try {
+            if (!index.dir(id)) {
+                printer.row(index.name(id), false, 1, 0, 1, index.size(id));
+                return;
             }
+            int first = index.first_child(id);
+            for (int child = first; child < first + index.child_count(id); child++) {
+                TreeStats stats = index.stats(child);
+                if (rows == null) {
+                    printer.row(index.name(child), index.dir(child), stats.depth, stats.dirNum, stats.fileNum, stats.size);
+                } else {
+                    rows.add(index.name(child), index.dir(child), stats);
+                }
+            }
+            if (rows != null) {
+                rows.print(printer);
+            }
+        } finally {
+            printer.flush();
         }
-
-        return false;
     }
 
-    private int getMaxDepth(File file, int currentDepth) {
-        if (!file.isDirectory()) {
-            return currentDepth;
+    // dir /fast：限定时间内输出每一项，没算完的子文件夹给出估计；refine 时在后台把估计的各项逐个精确统计
+    private void fast_dir(String format, File dir, ForkJoinPool pool, long budget, boolean refine) throws IOException {
+        long start = System.nanoTime();
+        List<DirEstimator.Estimate> estimates = new DirEstimator(pool).estimate(this.resolver.canonical(dir), budget);
+        ArrayList<DirEstimator.Estimate> estimated = new ArrayList<>();
+        DirPrinter printer = new DirPrinter(format, System.out, true);
+        printer.header();
+        try {
+            for (DirEstimator.Estimate e : estimates) {
+                printer.row(e);
+                if (!e.exact) {
+                    estimated.add(e);
+                }
+            }
+        } finally {
+            printer.flush();
         }
+        if (format.equals(DirPrinter.TEXT)) {
+            System.out.println("用时" + format_nanos(System.nanoTime() - start) + "，" + (estimates.size() - estimated.size())
+                    + "项精确，" + estimated.size() + "项估计。");
+        }
+        if (refine && !estimated.isEmpty()) {
+            start_job("dir " + dir.getPath() + " /refine", shell -> shell.refine_dir(format, estimated));
+        }
+    }
 
-        File[] sub_files = file.listFiles();
-        if (sub_files == null || sub_files.length == 0) {
-            return currentDepth;
+    // 在后台任务里逐个精确统计估计出来的项，算完一项输出一行；job cancel 在每个文件夹之前生效
+    private void refine_dir(String format, List<DirEstimator.Estimate> estimated) throws IOException {
+        Progress progress = this.job.begin("统计", estimated.size(), -1);
+        ForkJoinPool pool = scan_pool(this.parallelism);
+        DirPrinter printer = new DirPrinter(format, System.out, true);
+        printer.header();
+        try {
+            for (DirEstimator.Estimate e : estimated) {
+                progress.check();
+                printer.row(e.name, e.attrs, DirEstimator.refine(e, pool, progress));
+                printer.flush();
+                progress.files.increment();
+            }
+        } finally {
+            printer.flush();
         }
+    }
+
+    // rows 不为 null 时（/sort、/top）结果先收进 rows，全部统计完再按顺序输出
+    private void calculate_dir(DirPrinter printer, DirRows rows, File cur_file, TreeScanner scanner) throws IOException {
+        if (cur_file == null) return;
 
-        int max = currentDepth;
-        for (File sub_file : sub_files) {
-            if (file.isDirectory()) {
-                max = Math.max(max, getMaxDepth(sub_file, currentDepth + 1));
+        // 一次遍历得到每个子项的全部统计；并行模式下各子项同时统计
+        // 最多 DIR_WINDOW 项在途，最早的一项统计完就按列举顺序输出，内存占用与文件夹大小无关
+        // 用规范路径列举，子项的路径同时作为缓存的键
+        ArrayDeque<Pending> window = new ArrayDeque<>();
+        Metrics.list();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(this.resolver.canonical(cur_file))) {
+            for (Path child : children) {
+                if (window.size() == DIR_WINDOW) {
+                    window.poll().emit(printer, rows);
+                }
+                BasicFileAttributes attrs = TreeScanner.read_attrs(child);
+                window.add(new Pending(child.getFileName().toString(), attrs, scanner.submit(child, attrs)));
             }
+        } catch (IOException e) {
+            // 目录为空或无权限访问
         }
 
-        return max;
+        while (!window.isEmpty()) {
+            window.poll().emit(printer, rows);
+        }
+        if (rows != null) {
+            rows.print(printer);
+        }
     }
 
-    private int getDirNum(File file) {
-        if (file.isFile()) {
-            return 0;
-        }
+    // 已经提交、还没有输出的一项
+    private static class Pending {
+        final String name;
+        final BasicFileAttributes attrs;
+        final Future<TreeStats> stats;
 
-        File[] sub_files = file.listFiles();
-        if (sub_files == null || sub_files.length == 0) {
-            return 0;
+        Pending(String name, BasicFileAttributes attrs, Future<TreeStats> stats) {
+            this.name = name;
+            this.attrs = attrs;
+            this.stats = stats;
         }
 
-        int res = 0;
-        for (File sub_file : sub_files) {
-            if (sub_file.isDirectory()) {
-                res += 1;
-                res += getDirNum(sub_file);
+        void emit(DirPrinter printer, DirRows rows) throws IOException {
+            if (rows == null) {
+                printer.row(this.name, this.attrs, join(this.stats));
+            } else {
+                rows.add(this.name, this.attrs != null && this.attrs.isDirectory(), join(this.stats));
             }
         }
+    }
+
+    private void calculate_file(DirPrinter printer, File cur_file) throws IOException {
+        if (cur_file == null) return;
 
-        return res;
+        Path path = cur_file.toPath();
+        BasicFileAttributes attrs = TreeScanner.read_attrs(path);
+        printer.row(cur_file.getName(), attrs, this.scanner.scan(path, attrs));
     }
 
-    private int getFileNum(File file) {
-        if (file.isFile()) {
-            return 1;
-        }
+    // 表示des中有与src相同的文件，直接查这个名字，不列举整个文件夹
+    private boolean file_exists(File src, File des) {
+        return des.isDirectory() && Files.exists(des.toPath().resolve(src.getName()), LinkOption.NOFOLLOW_LINKS);
+    }
 
-        File[] sub_files = file.listFiles();
-        if (sub_files == null || sub_files.length == 0) {
-            return 0;
+    // 拷贝前预检，返回是否可以开始拷贝。续拷和同步本来就要写进已有的目标，不检查冲突
+    private boolean preflight(File src, File target, CopyOptions options) throws IOException {
+        if ((options.resume || options.sync) && !options.planOnly) {
+            if (this.job != null) {
+                this.job.begin("拷贝", -1, -1);
+            }
+            return true;
         }
 
-        int res = 0;
-        for (File sub_file : sub_files) {
-            res += getFileNum(sub_file);
+        CopyPlanner.Plan plan = new CopyPlanner(scan_pool(this.parallelism)).plan(src.toPath(), target.toPath());
+        // /plan 列出全部冲突，正常拷贝被冲突挡住时只列出前20项
+        int limit = options.planOnly ? Integer.MAX_VALUE : 20;
+        if (options.planOnly) {
+            System.out.println("预检：" + plan.dirs.sum() + "个文件夹，" + plan.files.sum() + "个文件，共" + formatFileSize(plan.bytes.sum())
+                    + (plan.usable >= 0 ? "，目的地可用" + formatFileSize(plan.usable) : "") + "。");
         }
-
-        return res;
-    }
-
-    private long getAllFileSize(File file) {
-        if (!file.isDirectory()) {
-            return file.length();
+        print_conflicts("文件和文件夹同名、无法拷贝", plan.clashes, limit);
+        if (options.planOnly || !options.overwrite) {
+            print_conflicts("目的地已有的同名文件", plan.overwrites, limit);
         }
+        print_conflicts("无法读取", plan.unreadable, limit);
 
-        File[] sub_files = file.listFiles();
-        if (sub_files == null || sub_files.length == 0) {
-            return 0;
+        if (options.planOnly) {
+            System.out.println("只做了预检，没有拷贝。");
+            return false;
+        }
+        if (!plan.clashes.isEmpty()) {
+            fail("存在无法拷贝的冲突，没有写入任何内容。");
+            return false;
+        }
+        if (!plan.overwrites.isEmpty() && !options.overwrite) {
+            fail("没有写入任何内容。加开关/o覆盖这些文件。");
+            return false;
+        }
+        if (!plan.fits()) {
+            fail("目的地空间不足：需要" + formatFileSize(plan.bytes.sum()) + "，可用" + formatFileSize(plan.usable) + "，没有写入任何内容。");
+            return false;
+        }
+        if (this.job != null) {
+            this.job.begin("拷贝", plan.files.sum(), plan.bytes.sum());
         }
+        return true;
+    }
 
-        long res = 0;
-        for (File sub_file : sub_files) {
-            if (!sub_file.isDirectory()) {
-                res += getAllFileSize(sub_file);
+    private static void print_conflicts(String title, Collection<?> paths, int limit) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        System.out.println(title + "共" + paths.size() + "项：");
+        int shown = 0;
+        for (Object path : paths) {
+            if (shown++ == limit) {
+                System.out.println("  ……");
+                break;
             }
+            System.out.println("  " + path);
         }
-
-        return res;
     }
 
     // 拷贝逻辑爆炸：单参表示一个文件夹，且这个文件夹是当前工作目录自身或其任意层级的祖先
     private boolean path_explode(File cur_file) throws IOException {
-        if (cur_file.isDirectory()) {
-            if (cur_file.getCanonicalPath().equals(this.currentDir.getCanonicalPath()) || is_Ancestor(this.currentDir, cur_file))
-                return true;
-        }
-
-        return false;
+        return cur_file.isDirectory() && is_Ancestor(this.currentDir, cur_file);
     }
 
+    // tar_file 是否是 src_file 本身或其任意层级的祖先，比较规范路径的各级名称
     private boolean is_Ancestor(File src_file, File tar_file) {
         if (src_file == null || tar_file == null) {
             return false;
         }
 
         try {
-            String tarPath = tar_file.getCanonicalPath();
-
-            File current = src_file;
-
-            // 一直往上遍历，检查是否遇到 tar_file
-            while (current != null) {
-                if (current.getCanonicalPath().equals(tarPath)) {
-                    return true;
-                }
-                current = current.getParentFile();
-            }
-
+            return this.resolver.is_ancestor_or_self(tar_file, src_file);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -788,42 +1996,57 @@ public class MiniDOS {
         return false;
     }
 
-    private void copyFile(File src, File des) throws IOException {
-        try (
-                FileInputStream fis = new FileInputStream(src);
-                FileOutputStream fos = new FileOutputStream(des);
-        ) {
-            byte[] buffer = new byte[1024]; // 1KB
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                fos.write(buffer, 0, length);
-            }
+    private Progress copyFile(File src, File des, CopyOptions options) throws IOException {
+        try {
+            return copy_engine().copy_file(src.toPath(), des.toPath(), options, progress());
+        } catch (IOException e) {
+            print_resume_hint(des);
+            throw e;
         }
     }
 
-    private void copyDirectory(File src, File des) throws IOException {
-        // 如果目标目录不存在，则创建
-        if (!des.exists()) {
-            boolean created = des.mkdirs();
-            if (!created) {
-                throw new IOException("无法创建目标目录: " + des.getCanonicalPath());
-            }
+    // 遍历与创建文件夹在当前线程，文件交给拷贝线程池并发完成
+    private Progress copyDirectory(File src, File des, CopyOptions options) throws IOException {
+        try {
+            return copy_engine().copy_tree(src.toPath(), des.toPath(), options, progress());
+        } catch (IOException e) {
+            print_resume_hint(des);
+            throw e;
         }
+    }
 
-        // 获取子文件和子文件夹
-        File[] files = src.listFiles();
-        if (files == null) return;
+    // 拷贝失败且留下了拷贝日志时，提示可以续拷
+    private void print_resume_hint(File des) {
+        if (Files.exists(CopyJournal.path_for(des.toPath()))) {
+            System.out.println("拷贝没有完成，已完成的部分记录在拷贝日志中，可用 copy /resume 加相同的参数继续。");
+        }
+    }
 
-        for (File file : files) {
-            File destFile = new_file(des, file.getName());
+    private CopyEngine copy_engine() {
+        if (this.copyEngine == null) {
+            this.copyEngine = new CopyEngine(this.copyWorkers,
+                    size_property("minidos.copy.large", "1G"),
+                    size_property("minidos.copy.chunk", "64M"),
+                    Integer.getInteger("minidos.copy.chunkThreads", Math.max(4, Runtime.getRuntime().availableProcessors())));
+        }
+        return this.copyEngine;
+    }
 
-            if (file.isDirectory()) {
-                // 递归复制子目录
-                copyDirectory(file, destFile);
-            } else if (file.isFile()) {
-                // 复制文件
-                copyFile(file, destFile);
-            }
+    // 报告拷贝的总量和速度
+    private void print_rate(Progress progress) {
+        long files = progress.files.sum();
+        long bytes = progress.bytes.sum();
+        double seconds = Math.max(progress.seconds(), 1e-6);
+        if (progress.unchanged.sum() > 0) {
+            System.out.println(progress.unchanged.sum() + "个文件没有变化，已跳过。");
+        }
+        if (progress.removed.sum() > 0) {
+            System.out.println("从目的地删除了" + progress.removed.sum() + "个多余的文件和文件夹。");
+        }
+        if (progress.skipped.sum() > 0) {
+            System.out.println("跳过上次已完成的" + progress.skipped.sum() + "个文件。");
         }
+        System.out.printf("共%d个文件，%s，用时%.2f秒，%.1f个文件/秒，%s/秒。%n",
+                files, formatFileSize(bytes), seconds, files / seconds, formatFileSize((long) (bytes / seconds)));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,426 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+/*
+把一个文件或一棵目录树打成 zip 或 tar.gz，边遍历边写。
+先写到同一文件夹下新建的临时文件，完成后原子地改名成压缩包，出错时删掉临时文件，原来的压缩包不受影响。
+遍历在调用线程中按名称顺序进行，文件内容直接读进 ParallelDeflater 的块缓冲区，压缩在线程池中分块并行。
+tar.gz 整个 tar 是一条 deflate 流；zip 每一项是一条自己的 deflate 流，小文件多时各项之间同样并行。
+zip 的每一项先写本地头（大小未知，置数据描述符标志），数据之后写数据描述符，最后写中央目录；超过 4G 或 65535 项时按 zip64 写。
+符号链接和特殊文件不打包，只计数。
+*/
+class Packer {
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int TAR_BLOCK = 512;
+
+    private final ParallelDeflater deflater;
+    private final boolean zip;
+    private final Progress progress;
+    // zip 的中央目录
+    private final ArrayList<ZipItem> items = new ArrayList<>();
+    // tar.gz 的整条流
+    private ParallelDeflater.Stream tar;
+    long skipped;
+
+    private Packer(OutputStream out, boolean zip, ForkJoinPool pool, Progress progress) {
+        this.deflater = new ParallelDeflater(out, pool, Deflater.DEFAULT_COMPRESSION);
+        this.zip = zip;
+        this.progress = progress;
+    }
+
+    static boolean is_zip(Path archive) {
+        return archive.getFileName().toString().toLowerCase().endsWith(".zip");
+    }
+
+    static boolean is_tar_gz(Path archive) {
+        String name = archive.getFileName().toString().toLowerCase();
+        return name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    // 打包 src，返回跳过的符号链接和特殊文件数
+    static long pack(Path src, Path archive, ForkJoinPool pool, Progress progress) throws IOException {
+        // 临时文件名由系统新建，不会碰到用户已有的文件
+        Path tmp = Files.createTempFile(archive.toAbsolutePath().getParent(), "." + archive.getFileName(), ".tmp");
+        boolean done = false;
+        try {
+            keep_mode(archive, tmp);
+            long skipped;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16)) {
+                Packer packer = new Packer(out, is_zip(archive), pool, progress);
+                packer.begin();
+                Path name = src.getFileName();
+                packer.walk(src, name == null ? "" : name.toString());
+                packer.end();
+                skipped = packer.skipped;
+            }
+            Files.move(tmp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+            return skipped;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    // 临时文件只有属主可读写；覆盖时沿用原压缩包的权限，新建时给成 rw-r--r--
+    private static void keep_mode(Path archive, Path tmp) throws IOException {
+        try {
+            Files.setPosixFilePermissions(tmp, Files.exists(archive)
+                    ? Files.getPosixFilePermissions(archive)
+                    : PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException e) {
+            // 不支持 POSIX 权限的文件系统保留默认权限
+        }
+    }
+
+    private void begin() throws IOException {
+        if (!this.zip) {
+            this.deflater.add(Packer::gzip_header);
+            this.tar = this.deflater.stream();
+        }
+    }
+
+    private void end() throws IOException {
+        if (this.zip) {
+            this.deflater.add(this::central_directory);
+        } else {
+            // tar 以两个全零块结束
+            this.tar.write(new byte[2 * TAR_BLOCK]);
+            this.tar.finish();
+            ParallelDeflater.Stream tar = this.tar;
+            this.deflater.add(() -> gzip_trailer(tar));
+        }
+        this.deflater.flush();
+    }
+
+    private void walk(Path path, String name) throws IOException {
+        this.progress.check();
+        BasicFileAttributes attrs = read_attrs(path);
+        if (attrs.isDirectory()) {
+            if (!name.isEmpty()) {
+                add_dir(name + "/", attrs);
+            }
+            ArrayList<Path> children = new ArrayList<>();
+            Metrics.list();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    children.add(child);
+                }
+            }
+            // 按名称排序，同一棵树每次打出的包相同
+            children.sort(null);
+            String prefix = name.isEmpty() ? "" : name + "/";
+            for (Path child : children) {
+                walk(child, prefix + child.getFileName());
+            }
+        } else if (attrs.isRegularFile()) {
+            add_file(path, name, attrs);
+        } else {
+            this.skipped++;
+        }
+    }
+
+    // 不跟随符号链接；支持 POSIX 时连同权限一起读出
+    private static BasicFileAttributes read_attrs(Path path) throws IOException {
+        Metrics.stat();
+        try {
+            return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    private static int mode(BasicFileAttributes attrs) {
+        if (!(attrs instanceof PosixFileAttributes)) {
+            return attrs.isDirectory() ? 0755 : 0644;
+        }
+        int mode = 0;
+        for (PosixFilePermission permission : ((PosixFileAttributes) attrs).permissions()) {
+            mode |= 0400 >> permission.ordinal();
+        }
+        return mode;
+    }
+
+    private void add_dir(String name, BasicFileAttributes attrs) throws IOException {
+        if (this.zip) {
+            ZipItem item = new ZipItem(name, attrs, true);
+            this.items.add(item);
+            this.deflater.add(() -> {
+                item.offset = this.deflater.position();
+                return item.local_header();
+            });
+        } else {
+            tar_header(name, '5', 0, attrs);
+        }
+    }
+
+    private void add_file(Path path, String name, BasicFileAttributes attrs) throws IOException {
+        long copied;
+        if (this.zip) {
+            ZipItem item = new ZipItem(name, attrs, false);
+            this.items.add(item);
+            this.deflater.add(() -> {
+                item.offset = this.deflater.position();
+                return item.local_header();
+            });
+            ParallelDeflater.Stream stream = this.deflater.stream();
+            try (InputStream in = Files.newInputStream(path)) {
+                copied = stream.read_from(in);
+            }
+            stream.finish();
+            item.crc = stream.crc.getValue();
+            item.size = stream.size;
+            // 压缩后的长度在前面各块写出之后才知道
+            this.deflater.add(() -> {
+                item.csize = stream.compressed;
+                return item.descriptor();
+            });
+        } else {
+            tar_header(name, '0', attrs.size(), attrs);
+            try (InputStream in = Files.newInputStream(path)) {
+                copied = this.tar.read_from(in);
+            }
+            if (copied != attrs.size()) {
+                throw new IOException("文件在打包过程中大小发生变化: " + path);
+            }
+            int pad = (int) ((TAR_BLOCK - copied % TAR_BLOCK) % TAR_BLOCK);
+            this.tar.write(new byte[pad]);
+        }
+        Metrics.read(copied);
+        Metrics.file();
+        this.progress.add_file(copied);
+    }
+
+    // ustar 头；名称超过 100 字节时先写一个 GNU 长名称项
+    private void tar_header(String name, char type, long size, BasicFileAttributes attrs) throws IOException {
+        byte[] name_bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (name_bytes.length > 100) {
+            this.tar.write(tar_block("././@LongLink", 'L', name_bytes.length + 1, 0644, 0));
+            this.tar.write(name_bytes);
+            int pad = (TAR_BLOCK - (name_bytes.length + 1) % TAR_BLOCK) % TAR_BLOCK;
+            this.tar.write(new byte[pad + 1]);
+        }
+        this.tar.write(tar_block(name, type, size, mode(attrs), attrs.lastModifiedTime().toMillis() / 1000));
+    }
+
+    private static byte[] tar_block(String name, char type, long size, int mode, long mtime) {
+        byte[] block = new byte[TAR_BLOCK];
+        byte[] name_bytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(name_bytes, 0, block, 0, Math.min(100, name_bytes.length));
+        octal(block, 100, 8, mode);
+        octal(block, 108, 8, 0);
+        octal(block, 116, 8, 0);
+        if (size < 077777777777L) {
+            octal(block, 124, 12, size);
+        } else {
+            // 超过 8G 时用 GNU 的 base-256 编码
+            block[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                block[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(block, 136, 12, mtime);
+        block[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, block, 257, 8);
+
+        // 校验和按校验和字段全是空格来算
+        for (int i = 148; i < 156; i++) {
+            block[i] = ' ';
+        }
+        long sum = 0;
+        for (byte b : block) {
+            sum += b & 0xFF;
+        }
+        octal(block, 148, 7, sum);
+        return block;
+    }
+
+    // 左补零的八进制数，最后一个字节是 NUL
+    private static void octal(byte[] block, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        for (int i = 0; i < width; i++) {
+            int from = digits.length() - width + i;
+            block[offset + i] = (byte) (from < 0 ? '0' : digits.charAt(from));
+        }
+        block[offset + width] = 0;
+    }
+
+    private static byte[] gzip_header() {
+        return new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    }
+
+    private static byte[] gzip_trailer(ParallelDeflater.Stream tar) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8);
+        le(out, tar.crc.getValue(), 4);
+        le(out, tar.size, 4);
+        return out.toByteArray();
+    }
+
+    // 小端写入 n 个字节
+    private static void le(ByteArrayOutputStream out, long value, int n) {
+        for (int i = 0; i < n; i++) {
+            out.write((int) (value >>> (8 * i)));
+        }
+    }
+
+    private byte[] central_directory() {
+        long start = this.deflater.position();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ZipItem item : this.items) {
+            item.central_header(out);
+        }
+        long length = out.size();
+        long count = this.items.size();
+
+        if (count >= 0xFFFF || start >= ZIP64_LIMIT || length >= ZIP64_LIMIT) {
+            long zip64_end = start + length;
+            le(out, 0x06064b50L, 4);
+            le(out, 44, 8);
+            le(out, 45, 2);
+            le(out, 45, 2);
+            le(out, 0, 4);
+            le(out, 0, 4);
+            le(out, count, 8);
+            le(out, count, 8);
+            le(out, length, 8);
+            le(out, start, 8);
+            // zip64 结束记录的定位器
+            le(out, 0x07064b50L, 4);
+            le(out, 0, 4);
+            le(out, zip64_end, 8);
+            le(out, 1, 4);
+        }
+        le(out, 0x06054b50L, 4);
+        le(out, 0, 2);
+        le(out, 0, 2);
+        le(out, Math.min(count, 0xFFFF), 2);
+        le(out, Math.min(count, 0xFFFF), 2);
+        le(out, Math.min(length, ZIP64_LIMIT), 4);
+        le(out, Math.min(start, ZIP64_LIMIT), 4);
+        le(out, 0, 2);
+        return out.toByteArray();
+    }
+
+    // zip 的一项，写出过程中逐步补全，最后用来写中央目录
+    private static class ZipItem {
+        final byte[] name;
+        final boolean dir;
+        final long dosTime;
+        final int mode;
+        long crc;
+        long size;
+        long csize;
+        long offset;
+
+        ZipItem(String name, BasicFileAttributes attrs, boolean dir) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.dir = dir;
+            this.dosTime = dos_time(attrs.lastModifiedTime().toMillis());
+            this.mode = mode(attrs);
+        }
+
+        // 文件名用 UTF-8（第 11 位）；文件的大小和 CRC 在数据之后的描述符里（第 3 位）
+        int flags() {
+            return this.dir ? 0x0800 : 0x0808;
+        }
+
+        byte[] local_header() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(30 + this.name.length);
+            le(out, 0x04034b50L, 4);
+            le(out, 20, 2);
+            le(out, flags(), 2);
+            le(out, this.dir ? 0 : 8, 2);
+            le(out, this.dosTime, 4);
+            le(out, 0, 4);
+            le(out, 0, 4);
+            le(out, 0, 4);
+            le(out, this.name.length, 2);
+            le(out, 0, 2);
+            out.writeBytes(this.name);
+            return out.toByteArray();
+        }
+
+        // 任一大小超过 4G 时大小按 8 字节写，和 ZipInputStream 的判断一致
+        byte[] descriptor() {
+            boolean zip64 = this.size > ZIP64_LIMIT || this.csize > ZIP64_LIMIT;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(24);
+            le(out, 0x08074b50L, 4);
+            le(out, this.crc, 4);
+            le(out, this.csize, zip64 ? 8 : 4);
+            le(out, this.size, zip64 ? 8 : 4);
+            return out.toByteArray();
+        }
+
+        void central_header(ByteArrayOutputStream out) {
+            ByteArrayOutputStream extra = new ByteArrayOutputStream();
+            if (this.size >= ZIP64_LIMIT) {
+                le(extra, this.size, 8);
+            }
+            if (this.csize >= ZIP64_LIMIT) {
+                le(extra, this.csize, 8);
+            }
+            if (this.offset >= ZIP64_LIMIT) {
+                le(extra, this.offset, 8);
+            }
+            boolean zip64 = extra.size() > 0;
+
+            le(out, 0x02014b50L, 4);
+            // 由 Unix 创建，外部属性的高 16 位是文件类型和权限
+            le(out, 3 << 8 | (zip64 ? 45 : 20), 2);
+            le(out, zip64 ? 45 : 20, 2);
+            le(out, flags(), 2);
+            le(out, this.dir ? 0 : 8, 2);
+            le(out, this.dosTime, 4);
+            le(out, this.crc, 4);
+            le(out, Math.min(this.csize, ZIP64_LIMIT), 4);
+            le(out, Math.min(this.size, ZIP64_LIMIT), 4);
+            le(out, this.name.length, 2);
+            le(out, zip64 ? extra.size() + 4 : 0, 2);
+            le(out, 0, 2);
+            le(out, 0, 2);
+            le(out, 0, 2);
+            le(out, (long) ((this.dir ? 040000 : 0100000) | this.mode) << 16 | (this.dir ? 0x10 : 0), 4);
+            le(out, Math.min(this.offset, ZIP64_LIMIT), 4);
+            out.writeBytes(this.name);
+            if (zip64) {
+                le(out, 1, 2);
+                le(out, extra.size(), 2);
+                out.writeBytes(extra.toByteArray());
+            }
+        }
+
+        // MS-DOS 格式的本地时间，精确到 2 秒，1980 年以前按 1980 年
+        private static long dos_time(long millis) {
+            LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+            if (t.getYear() < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return (long) (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                    | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+        }
+    }
+}
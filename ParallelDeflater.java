@@ -0,0 +1,217 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+分块并行的 deflate 压缩，做法和 pigz 相同：
+输入切成 128K 的块，每块以前一块末尾的 32K 作为预设字典单独压缩，块尾用 SYNC_FLUSH 对齐到字节，
+最后一块用 FINISH 结束，按顺序首尾相接就是一条合法的 deflate 流，任何解压程序都能读。
+各块在线程池中并行压缩，写出时按提交的顺序；最多同时有 WINDOW_PER_THREAD × 线程数 块在途，内存有上限。
+写出队列里除了压缩块，还可以放压缩包格式自己的头尾（Piece），它们在轮到写出时才生成，
+因此可以用到写出位置和之前各块压缩后的长度。
+*/
+class ParallelDeflater {
+
+    static final int BLOCK = 128 * 1024;
+    private static final int DICT = 32 * 1024;
+    private static final int WINDOW_PER_THREAD = 4;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<byte[]> OUTPUT = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    // 写出队列中的一项，轮到写出时才取得内容
+    interface Piece {
+        byte[] bytes() throws IOException;
+    }
+
+    private final OutputStream out;
+    // 为 null 表示在调用线程中顺序压缩
+    private final ForkJoinPool pool;
+    private final int level;
+    private final int window;
+    private final ArrayDeque<Piece> queue = new ArrayDeque<>();
+    private long position;
+    // 上一条流结束时留下的块缓冲区，zip 里大量小文件时不必每项都新配 128K
+    private byte[] spare;
+
+    ParallelDeflater(OutputStream out, ForkJoinPool pool, int level) {
+        this.out = out;
+        this.pool = pool;
+        this.level = level;
+        this.window = pool == null ? 1 : WINDOW_PER_THREAD * pool.getParallelism();
+    }
+
+    // 已经写出的字节数，只在 Piece 生成内容时读取才是它自己的起始位置
+    long position() {
+        return this.position;
+    }
+
+    void add(Piece piece) throws IOException {
+        this.queue.add(piece);
+        while (this.queue.size() > this.window) {
+            emit();
+        }
+    }
+
+    // 写出队列中剩下的全部内容
+    void flush() throws IOException {
+        while (!this.queue.isEmpty()) {
+            emit();
+        }
+        this.out.flush();
+    }
+
+    private void emit() throws IOException {
+        byte[] bytes = this.queue.poll().bytes();
+        this.out.write(bytes);
+        this.position += bytes.length;
+    }
+
+    // 开始一条新的 deflate 流（zip 的一项，或整个 tar）
+    Stream stream() {
+        return new Stream();
+    }
+
+    /*
+    一条 deflate 流的输入端。写满一块就交出去压缩；CRC 和原始长度在调用线程中累加，finish 之后立即可用，
+    压缩后的长度要等各块写出之后才完整，只能在之后的 Piece 里读取。
+    */
+    class Stream extends OutputStream {
+        final CRC32 crc = new CRC32();
+        long size;
+        long compressed;
+        private byte[] block = take_block();
+        private int fill;
+        // 上一块的内容，用作下一块的字典
+        private byte[] prev;
+        private int prevLen;
+
+        @Override
+        public void write(int b) throws IOException {
+            this.block[this.fill++] = (byte) b;
+            if (this.fill == BLOCK) {
+                submit(false);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, BLOCK - this.fill);
+                System.arraycopy(b, off, this.block, this.fill, n);
+                this.fill += n;
+                off += n;
+                len -= n;
+                if (this.fill == BLOCK) {
+                    submit(false);
+                }
+            }
+        }
+
+        // 直接读进块缓冲区，省去一次拷贝；返回读入的字节数
+        long read_from(InputStream in) throws IOException {
+            long total = 0;
+            while (true) {
+                int n = in.read(this.block, this.fill, BLOCK - this.fill);
+                if (n < 0) {
+                    return total;
+                }
+                this.fill += n;
+                total += n;
+                if (this.fill == BLOCK) {
+                    submit(false);
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            submit(true);
+        }
+
+        private void submit(boolean last) throws IOException {
+            this.crc.update(this.block, 0, this.fill);
+            this.size += this.fill;
+
+            // 最后一块通常很小，拷贝出来，块缓冲区留给下一条流；满块直接交出，另配新的缓冲区
+            byte[] data = last ? Arrays.copyOf(this.block, this.fill) : this.block;
+            int len = this.fill;
+            byte[] dict = this.prev;
+            int dict_len = this.prevLen;
+            if (ParallelDeflater.this.pool == null) {
+                byte[] result = deflate(data, len, dict, dict_len, last, ParallelDeflater.this.level);
+                add(() -> counted(result));
+            } else {
+                int level = ParallelDeflater.this.level;
+                Future<byte[]> task = ParallelDeflater.this.pool.submit(() -> deflate(data, len, dict, dict_len, last, level));
+                add(() -> counted(join(task)));
+            }
+
+            if (last) {
+                this.prev = null;
+                this.prevLen = 0;
+                ParallelDeflater.this.spare = this.block;
+            } else {
+                this.prev = data;
+                this.prevLen = len;
+                this.block = new byte[BLOCK];
+            }
+            this.fill = 0;
+        }
+
+        private byte[] counted(byte[] bytes) {
+            this.compressed += bytes.length;
+            return bytes;
+        }
+    }
+
+    private byte[] take_block() {
+        byte[] block = this.spare != null ? this.spare : new byte[BLOCK];
+        this.spare = null;
+        return block;
+    }
+
+    private static byte[] join(Future<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("压缩被中断");
+        } catch (ExecutionException e) {
+            throw new IOException("压缩失败", e.getCause());
+        }
+    }
+
+    // 压缩一块；不是最后一块时以 SYNC_FLUSH 结束，保证下一块可以从字节边界接上
+    static byte[] deflate(byte[] data, int len, byte[] dict, int dict_len, boolean last, int level) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        if (dict != null) {
+            int n = Math.min(DICT, dict_len);
+            deflater.setDictionary(dict, dict_len - n, n);
+        }
+        deflater.setInput(data, 0, len);
+        if (last) {
+            deflater.finish();
+        }
+
+        byte[] buffer = OUTPUT.get();
+        ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(64, len / 2));
+        while (true) {
+            int n = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            result.write(buffer, 0, n);
+            if (last ? deflater.finished() : n < buffer.length) {
+                break;
+            }
+        }
+        return result.toByteArray();
+    }
+}
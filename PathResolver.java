@@ -0,0 +1,51 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+规范路径缓存。每条命令解析相对路径时都要用到工作目录的规范路径，检查祖先关系时也要规范化两端，
+原来每次都调用 getCanonicalPath()，沿路径逐级 realpath。这里按绝对路径缓存规范形式，按 LRU 淘汰；
+规范形式只在文件系统的结构变化时改变，所以 cd、rn、move、del 之后整个清空。
+祖先关系直接比较规范路径的各级名称（Path.startsWith），不再逐级向上规范化。
+*/
+class PathResolver {
+
+    private static final int CAPACITY = 256;
+
+    private final LinkedHashMap<String, Path> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Path> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    synchronized Path canonical(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        Path path = this.cache.get(key);
+        if (path == null) {
+            path = file.getCanonicalFile().toPath();
+            this.cache.put(key, path);
+        }
+        return path;
+    }
+
+    // 相对路径接在 prefix 的规范路径后面，绝对路径原样返回
+    File resolve(File prefix, String name) throws IOException {
+        File file = new File(name);
+        if (file.isAbsolute()) {
+            return file;
+        }
+        return canonical(prefix).resolve(name).toFile();
+    }
+
+    // ancestor 是否是 path 本身或其任意一级祖先
+    boolean is_ancestor_or_self(File ancestor, File path) throws IOException {
+        return canonical(path).startsWith(canonical(ancestor));
+    }
+
+    synchronized void invalidate() {
+        this.cache.clear();
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+// 一次拷贝（或删除）的进度：已完成的文件数和字节数，多个工作线程同时累加；后台任务通过它取消正在进行的操作，限速也经由它
+class Progress {
+
+    final LongAdder files;
+    final LongAdder bytes = new LongAdder();
+    // 续拷时跳过的、上次已经完成的文件数
+    final LongAdder skipped = new LongAdder();
+    // 同步时没有变化而跳过的文件数，以及从目的地删除的多余文件（夹）数
+    final LongAdder unchanged = new LongAdder();
+    final LongAdder removed = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean cancelled;
+    // 为 null 表示不限速
+    volatile RateLimiter limiter;
+    // purge 得到的子进度跟随它取消
+    private final Progress parent;
+
+    Progress() {
+        this.files = new LongAdder();
+        this.parent = null;
+    }
+
+    private Progress(Progress parent) {
+        this.files = parent.removed;
+        this.parent = parent;
+        this.limiter = parent.limiter;
+    }
+
+    // 同步时删除多余文件（夹）用的子进度：删掉的项计入本进度的 removed 而不是拷贝的文件数，取消和限速跟随本进度
+    Progress purge() {
+        return new Progress(this);
+    }
+
+    void add_file(long size) {
+        this.files.increment();
+        this.bytes.add(size);
+    }
+
+    // 大文件分段拷贝时按段累加字节数，整个文件完成后再计数
+    void add_bytes(long size) {
+        this.bytes.add(size);
+    }
+
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    boolean cancelled() {
+        return this.cancelled || this.parent != null && this.parent.cancelled();
+    }
+
+    // 引擎在每个文件、每一段之前检查，已取消时抛出异常，按出错处理（拷贝日志保留，可以续拷）
+    void check() throws IOException {
+        if (cancelled()) {
+            throw new IOException("已取消");
+        }
+    }
+
+    // 每段数据、每个文件或每次删除之前领取令牌；等待期间取消会抛出异常
+    void throttle_bytes(long n) throws IOException {
+        RateLimiter limiter = this.limiter;
+        if (limiter != null) {
+            limiter.acquire_bytes(n, this);
+        }
+    }
+
+    void throttle_op() throws IOException {
+        RateLimiter limiter = this.limiter;
+        if (limiter != null) {
+            limiter.acquire_op(this);
+        }
+    }
+
+    // 一次 transferTo 最多拷贝多少字节
+    long slice() {
+        RateLimiter limiter = this.limiter;
+        return limiter == null ? Long.MAX_VALUE : limiter.slice();
+    }
+
+    double seconds() {
+        return (System.nanoTime() - this.startNanos) / 1e9;
+    }
+}
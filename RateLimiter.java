@@ -0,0 +1,120 @@
+import java.io.IOException;
+
+/*
+拷贝、移动和删除的限速：每秒字节数和每秒操作数各一个令牌桶，速率为 0 表示不限。
+桶的容量是一秒的量，允许短暂的突发；令牌不够时先记账（允许欠），然后在锁外睡到补足为止，多个线程按领取的先后排队。
+速率可以在运行中修改，从下一次领取开始生效。不限速时领取只读一个 volatile 字段就返回，引擎也照常整段调用 transferTo。
+*/
+class RateLimiter {
+
+    // 限速时每段拷贝大约是十分之一秒的量，不小于 64K，不大于 8M
+    private static final long MIN_SLICE = 64 * 1024;
+    private static final long MAX_SLICE = 8L << 20;
+    // 睡眠期间每隔多久检查一次是否已取消
+    private static final long CHECK_NANOS = 100_000_000L;
+
+    private final Bucket bytes = new Bucket();
+    private final Bucket ops = new Bucket();
+
+    RateLimiter() {
+    }
+
+    RateLimiter(long bytes_per_second, long ops_per_second) {
+        set(bytes_per_second, ops_per_second);
+    }
+
+    // 负数表示这一项保持不变
+    void set(long bytes_per_second, long ops_per_second) {
+        if (bytes_per_second >= 0) {
+            this.bytes.set(bytes_per_second);
+        }
+        if (ops_per_second >= 0) {
+            this.ops.set(ops_per_second);
+        }
+    }
+
+    long bytes_rate() {
+        return this.bytes.rate;
+    }
+
+    long ops_rate() {
+        return this.ops.rate;
+    }
+
+    // 一次 transferTo 最多拷贝多少字节，不限速时整段拷贝
+    long slice() {
+        long rate = this.bytes.rate;
+        if (rate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(MIN_SLICE, Math.min(MAX_SLICE, rate / 10));
+    }
+
+    void acquire_bytes(long n, Progress progress) throws IOException {
+        wait(this.bytes.reserve(n), progress);
+    }
+
+    void acquire_op(Progress progress) throws IOException {
+        wait(this.ops.reserve(1), progress);
+    }
+
+    // 分段睡眠，取消后立即返回
+    private static void wait(long nanos, Progress progress) throws IOException {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            progress.check();
+            try {
+                Thread.sleep(Math.min(nanos, CHECK_NANOS) / 1_000_000, (int) (Math.min(nanos, CHECK_NANOS) % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("限速等待被中断");
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (this.bytes.rate <= 0 && this.ops.rate <= 0) {
+            return "不限速";
+        }
+        String text = this.bytes.rate > 0 ? MiniDOS.formatFileSize(this.bytes.rate) + "/秒" : "字节不限";
+        return text + "，" + (this.ops.rate > 0 ? this.ops.rate + "个操作/秒" : "操作数不限");
+    }
+
+    private static class Bucket {
+        volatile long rate;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        synchronized void set(long rate) {
+            refill(System.nanoTime());
+            this.rate = rate;
+            // 调低速率时多出的令牌作废，新建或从不限改为限速时给满一秒的量
+            this.tokens = this.tokens == 0 ? rate : Math.min(this.tokens, rate);
+        }
+
+        // 领取 n 个令牌，返回需要等待的纳秒数
+        long reserve(long n) {
+            if (this.rate <= 0) {
+                return 0;
+            }
+            synchronized (this) {
+                long rate = this.rate;
+                if (rate <= 0) {
+                    return 0;
+                }
+                refill(System.nanoTime());
+                this.tokens -= n;
+                return this.tokens >= 0 ? 0 : (long) (-this.tokens * 1e9 / rate);
+            }
+        }
+
+        private void refill(long now) {
+            if (this.rate > 0) {
+                this.tokens = Math.min(this.rate, this.tokens + (now - this.last) * this.rate / 1e9);
+            }
+            this.last = now;
+        }
+    }
+}
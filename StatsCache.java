@@ -0,0 +1,121 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+持久化的文件夹统计缓存，键为文件夹的规范路径，值为该文件夹的本层列举结果（DirLevel）。
+文件夹的修改时间只在其直接子项增删或改名时变化，所以每一层单独缓存：统计一棵树时只需读取各文件夹的属性，
+修改时间没变的文件夹不再列举，变了的才重新列举。按 LRU 淘汰，条目数有上限；程序退出时写回磁盘，下次启动继续使用。
+*/
+class StatsCache {
+
+    private static final int MAGIC = 0x4D444331; // "MDC1"
+    // 修改时间离现在太近的文件夹不缓存：同一时间戳内可能还有改动，缓存下来就再也发现不了
+    private static final long RACY_MILLIS = 2000;
+
+    private final Path file;
+    private final LinkedHashMap<String, DirLevel> map;
+    private boolean dirty;
+
+    StatsCache(Path file, int capacity) {
+        this.file = file;
+        // accessOrder 为 true 时按访问顺序排列，最久未用的在最前面
+        this.map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DirLevel> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // 修改时间一致才算命中
+    synchronized DirLevel get(String key, long mtime) {
+        DirLevel level = this.map.get(key);
+        if (level == null) {
+            return null;
+        }
+        if (level.mtime != mtime) {
+            this.map.remove(key);
+            this.dirty = true;
+            return null;
+        }
+        return level;
+    }
+
+    synchronized void put(String key, DirLevel level) {
+        if (System.currentTimeMillis() - level.mtime < RACY_MILLIS) {
+            return;
+        }
+        this.map.put(key, level.without_attrs());
+        this.dirty = true;
+    }
+
+    synchronized int size() {
+        return this.map.size();
+    }
+
+    // 从磁盘读入，文件不存在或格式不对时从空缓存开始
+    synchronized void load() {
+        if (!Files.isRegularFile(this.file)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file)))) {
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                DirLevel level = new DirLevel();
+                level.mtime = in.readLong();
+                level.fileNum = in.readLong();
+                level.size = in.readLong();
+                level.other = in.readBoolean();
+                int subdir_num = in.readInt();
+                for (int j = 0; j < subdir_num; j++) {
+                    level.subdirs.add(in.readUTF());
+                }
+                this.map.put(key, level);
+            }
+        } catch (IOException e) {
+            this.map.clear();
+        }
+        this.dirty = false;
+    }
+
+    // 按 LRU 顺序写回磁盘（最久未用的在前，读回后顺序不变），先写临时文件再替换
+    synchronized void save() throws IOException {
+        if (!this.dirty) {
+            return;
+        }
+
+        Files.createDirectories(this.file.getParent());
+        Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(this.map.size());
+            for (Map.Entry<String, DirLevel> entry : this.map.entrySet()) {
+                DirLevel level = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(level.mtime);
+                out.writeLong(level.fileNum);
+                out.writeLong(level.size);
+                out.writeBoolean(level.other);
+                out.writeInt(level.subdirs.size());
+                for (String name : level.subdirs) {
+                    out.writeUTF(name);
+                }
+            }
+        }
+        Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.dirty = false;
+    }
+}
@@ -0,0 +1,651 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/*
+一棵树的快照索引，保存在一个文件里，用内存映射读取，数据不占堆。
+每个文件、文件夹是一个编号，按广度优先排列：同一文件夹的子项编号连续，并按名称排序，查路径时逐层二分查找。
+名称去重后放在名称表里（两字节长度加 UTF-8），各项只记名称在表中的位置；其余属性是按编号排列的基本类型数组：
+类型、父编号、第一个子项、子项个数、大小、修改时间，文件夹另有整棵子树的文件数、文件夹数和最大深度，建立时一次算好。
+打开索引只读文件头并映射各段，和树的大小无关；dir、find 查索引时不访问被索引的树，cd 在索引中解析路径后只读一次属性确认文件夹还在。
+刷新时复用旧索引：修改时间没变的文件夹不再列举（和 StatsCache 的假设相同），只读取其子文件夹的属性继续往下比对。
+符号链接不跟随，记为“其它”，树里有环时也不会无限展开。每段数组不超过 2G 字节，约两亿项；子树的文件数、文件夹数按 int 计。
+*/
+class TreeIndex {
+
+    static final byte FILE = 0;
+    static final byte DIR = 1;
+    static final byte OTHER = 2;
+
+    private static final int MAGIC = 0x4D445831; // "MDX1"
+    // 修改时间离建立时太近的文件夹不复用：同一时间戳内可能还有改动
+    private static final long RACY_MILLIS = 2000;
+    // 每批并行列举的文件夹数
+    private static final int BATCH = 256;
+
+    final Path root;
+    final Path file;
+    final int count;
+    final int nameCount;
+    final int nameBytes;
+    final long built;
+    final long fileBytes;
+
+    private final ByteBuffer kind;
+    private final IntBuffer parent;
+    private final IntBuffer name;
+    private final IntBuffer first;
+    private final IntBuffer children;
+    private final LongBuffer size;
+    private final LongBuffer mtime;
+    private final IntBuffer files;
+    private final IntBuffer dirs;
+    private final ShortBuffer depth;
+    private final ByteBuffer names;
+
+    private TreeIndex(Path file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.fileBytes = channel.size();
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(this.fileBytes, 64 * 1024));
+        if (header.remaining() < 28 || header.getInt() != MAGIC) {
+            throw new IOException("不是索引文件：" + file);
+        }
+        this.count = header.getInt();
+        this.nameCount = header.getInt();
+        this.nameBytes = header.getInt();
+        this.built = header.getLong();
+        byte[] root = new byte[header.getInt()];
+        header.get(root);
+        this.root = Path.of(new String(root, StandardCharsets.UTF_8));
+
+        // 各段依次排列，每段从 8 字节边界开始
+        long offset = align(header.position());
+        long n = this.count;
+        this.kind = map(channel, offset, n);
+        offset = align(offset + n);
+        this.parent = map(channel, offset, 4 * n).asIntBuffer();
+        offset = align(offset + 4 * n);
+        this.name = map(channel, offset, 4 * n).asIntBuffer();
+        offset = align(offset + 4 * n);
+        this.first = map(channel, offset, 4 * n).asIntBuffer();
+        offset = align(offset + 4 * n);
+        this.children = map(channel, offset, 4 * n).asIntBuffer();
+        offset = align(offset + 4 * n);
+        this.size = map(channel, offset, 8 * n).asLongBuffer();
+        offset = align(offset + 8 * n);
+        this.mtime = map(channel, offset, 8 * n).asLongBuffer();
+        offset = align(offset + 8 * n);
+        this.files = map(channel, offset, 4 * n).asIntBuffer();
+        offset = align(offset + 4 * n);
+        this.dirs = map(channel, offset, 4 * n).asIntBuffer();
+        offset = align(offset + 4 * n);
+        this.depth = map(channel, offset, 2 * n).asShortBuffer();
+        offset = align(offset + 2 * n);
+        this.names = map(channel, offset, this.nameBytes);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        if (offset + length > channel.size()) {
+            throw new IOException("索引文件不完整");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    // 映射已有的索引文件；映射建立后通道可以关闭
+    static TreeIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TreeIndex(file, channel);
+        }
+    }
+
+    byte kind(int id) {
+        return this.kind.get(id);
+    }
+
+    boolean dir(int id) {
+        return this.kind.get(id) == DIR;
+    }
+
+    int parent(int id) {
+        return this.parent.get(id);
+    }
+
+    int first_child(int id) {
+        return this.first.get(id);
+    }
+
+    int child_count(int id) {
+        return this.children.get(id);
+    }
+
+    // 文件是自身大小，文件夹是整棵子树的大小
+    long size(int id) {
+        return this.size.get(id);
+    }
+
+    long mtime(int id) {
+        return this.mtime.get(id);
+    }
+
+    String name(int id) {
+        int offset = this.name.get(id);
+        int length = this.names.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        this.names.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 和扫描得到的 TreeStats 含义相同
+    TreeStats stats(int id) {
+        if (kind(id) == FILE) {
+            return TreeStats.of_file(size(id));
+        }
+        TreeStats stats = new TreeStats();
+        stats.depth = this.depth.get(id);
+        stats.dirNum = this.dirs.get(id);
+        stats.fileNum = this.files.get(id);
+        stats.size = size(id);
+        return stats;
+    }
+
+    Path path(int id) {
+        ArrayList<String> parts = new ArrayList<>();
+        for (int i = id; i != 0; i = parent(i)) {
+            parts.add(name(i));
+        }
+        Path path = this.root;
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            path = path.resolve(parts.get(i));
+        }
+        return path;
+    }
+
+    boolean covers(Path path) {
+        return path.startsWith(this.root);
+    }
+
+    // 按路径查编号，path 应是规范化的绝对路径；不在索引中时返回 -1
+    int lookup(Path path) {
+        if (!covers(path)) {
+            return -1;
+        }
+        int id = 0;
+        for (Path part : this.root.relativize(path)) {
+            String wanted = part.toString();
+            if (wanted.isEmpty()) {
+                continue;
+            }
+            if (!dir(id)) {
+                return -1;
+            }
+            id = find_child(id, wanted);
+            if (id < 0) {
+                return -1;
+            }
+        }
+        return id;
+    }
+
+    // 子项按名称排序，二分查找
+    private int find_child(int dir, String wanted) {
+        int low = first_child(dir);
+        int high = low + child_count(dir) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = name(mid).compareTo(wanted);
+            if (c == 0) {
+                return mid;
+            }
+            if (c < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    // 依次访问 id 下面整棵子树的每一项（不含 id 自身），同一文件夹的子项是连续的一段编号
+    void walk(int id, IntConsumer visitor) {
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        pending.add(id);
+        while (!pending.isEmpty()) {
+            int dir = pending.poll();
+            int from = first_child(dir);
+            int to = from + child_count(dir);
+            for (int child = from; child < to; child++) {
+                visitor.accept(child);
+                if (dir(child)) {
+                    pending.add(child);
+                }
+            }
+        }
+    }
+
+    /*
+    索引文件放在 dir 下，每个根一组：<根路径 SHA-256 的前 16 位十六进制>.<代号>.idx。
+    建立和刷新都写新的一代，不替换正在映射的文件（Windows 上映射着的文件不能替换也不能删除）；
+    新的一代打开之后，旧的几代能删就删，删不掉的留到下一次。打开时仍要核对文件头里的根路径。
+    */
+    static Path latest(Path dir, Path root) throws IOException {
+        Path latest = null;
+        long latest_generation = -1;
+        for (Path file : generations(dir, root)) {
+            long generation = generation(file);
+            if (generation > latest_generation) {
+                latest = file;
+                latest_generation = generation;
+            }
+        }
+        return latest;
+    }
+
+    private static Path next_generation(Path dir, Path root) throws IOException {
+        Path latest = latest(dir, root);
+        long generation = latest == null ? 1 : generation(latest) + 1;
+        return dir.resolve(prefix(root) + "." + generation + ".idx");
+    }
+
+    private static ArrayList<Path> generations(Path dir, Path root) throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix(root) + ".*.idx")) {
+            for (Path file : stream) {
+                if (generation(file) >= 0) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    // 文件名中的代号，不合格式时返回 -1
+    private static long generation(Path file) {
+        String name = file.getFileName().toString();
+        int first = name.indexOf('.');
+        int last = name.lastIndexOf('.');
+        try {
+            return first < last ? Long.parseLong(name.substring(first + 1, last)) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String prefix(Path root) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(root.toString().getBytes(StandardCharsets.UTF_8));
+            return String.format("%016x", ByteBuffer.wrap(digest).getLong());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void remove_older(Path dir, Path root, Path keep) {
+        try {
+            for (Path file : generations(dir, root)) {
+                if (generation(file) < generation(keep)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            // 还映射着或没有权限，下次再删
+        }
+    }
+
+    // 建立或刷新的结果
+    static class BuildResult {
+        TreeIndex index;
+        // 重新列举的文件夹数和沿用旧索引的文件夹数
+        long listed;
+        long reused;
+    }
+
+    /*
+    建立 root 的索引，作为新的一代写到 index_dir 下；old 不为 null 时是刷新，修改时间没变的文件夹沿用 old 中的子项。
+    各批文件夹在 pool 中并行列举（为 null 时顺序进行），编号仍按广度优先依次分配。先写临时文件，完成后替换。
+    */
+    static BuildResult build(Path root, Path index_dir, ForkJoinPool pool, TreeIndex old) throws IOException {
+        BasicFileAttributes root_attrs = read_attrs(root);
+        if (root_attrs == null || !root_attrs.isDirectory()) {
+            throw new IOException("要建立索引的文件夹不存在：" + root);
+        }
+        long started = System.currentTimeMillis();
+        Builder builder = new Builder();
+        BuildResult result = new BuildResult();
+        builder.add(-1, "", DIR, 0, root_attrs.lastModifiedTime().toMillis());
+
+        // 等待列举的文件夹：编号、路径、旧索引中的编号（没有时为 -1），按编号顺序
+        ArrayDeque<Pending> pending = new ArrayDeque<>();
+        pending.add(new Pending(0, root, old != null && old.root.equals(root) ? 0 : -1));
+        while (!pending.isEmpty()) {
+            ArrayList<Pending> batch = new ArrayList<>();
+            while (!pending.isEmpty() && batch.size() < BATCH) {
+                batch.add(pending.poll());
+            }
+            ArrayList<Future<Listing>> tasks = new ArrayList<>();
+            for (Pending dir : batch) {
+                long dir_mtime = builder.mtime[dir.id];
+                tasks.add(pool == null ? null : pool.submit(() -> list(dir, dir_mtime, old)));
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Pending dir = batch.get(i);
+                Listing listing = pool == null ? list(dir, builder.mtime[dir.id], old) : join(tasks.get(i));
+                Entry[] entries = listing.entries;
+                if (listing.reused) {
+                    result.reused++;
+                } else {
+                    result.listed++;
+                }
+                builder.first[dir.id] = builder.count;
+                builder.children[dir.id] = entries.length;
+                for (Entry entry : entries) {
+                    int id = builder.add(dir.id, entry.name, entry.kind, entry.size, entry.mtime);
+                    if (entry.kind == DIR) {
+                        pending.add(new Pending(id, dir.path.resolve(entry.name), entry.old));
+                    }
+                }
+            }
+        }
+
+        builder.aggregate();
+        Files.createDirectories(index_dir);
+        Path file = next_generation(index_dir, root);
+        builder.write(file, root, started);
+        result.index = open(file);
+        remove_older(index_dir, root, file);
+        return result;
+    }
+
+    private static Listing join(Future<Listing> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("建立索引被中断");
+        } catch (ExecutionException e) {
+            throw new IOException("建立索引失败", e.getCause());
+        }
+    }
+
+    private static class Pending {
+        final int id;
+        final Path path;
+        final int old;
+
+        Pending(int id, Path path, int old) {
+            this.id = id;
+            this.path = path;
+            this.old = old;
+        }
+    }
+
+    // 一个文件夹的子项，以及是否沿用了旧索引
+    private static class Listing {
+        final Entry[] entries;
+        final boolean reused;
+
+        Listing(Entry[] entries, boolean reused) {
+            this.entries = entries;
+            this.reused = reused;
+        }
+    }
+
+    // 一个子项；old 是子文件夹在旧索引中的编号
+    private static class Entry {
+        String name;
+        byte kind;
+        long size;
+        long mtime;
+        int old = -1;
+    }
+
+    // 列出一个文件夹的子项，按名称排序；修改时间和旧索引一致时沿用旧索引的子项
+    private static Listing list(Pending dir, long dir_mtime, TreeIndex old) {
+        if (dir.old >= 0 && old.dir(dir.old) && old.mtime(dir.old) == dir_mtime && old.built - dir_mtime >= RACY_MILLIS) {
+            return new Listing(reuse(dir, old), true);
+        }
+
+        ArrayList<Entry> entries = new ArrayList<>();
+        Metrics.list();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.path)) {
+            for (Path child : stream) {
+                Entry entry = new Entry();
+                entry.name = child.getFileName().toString();
+                describe(entry, read_attrs(child));
+                if (entry.kind == DIR && dir.old >= 0 && old.dir(dir.old)) {
+                    entry.old = old.find_child(dir.old, entry.name);
+                }
+                entries.add(entry);
+            }
+        } catch (IOException | SecurityException e) {
+            // 无权限访问，按空文件夹处理
+        }
+        Entry[] result = entries.toArray(new Entry[0]);
+        Arrays.sort(result, (a, b) -> a.name.compareTo(b.name));
+        return new Listing(result, false);
+    }
+
+    // 子项没有增删，文件沿用旧的属性，子文件夹重新读取属性，以便继续往下比对
+    private static Entry[] reuse(Pending dir, TreeIndex old) {
+        int from = old.first_child(dir.old);
+        Entry[] result = new Entry[old.child_count(dir.old)];
+        for (int i = 0; i < result.length; i++) {
+            int id = from + i;
+            Entry entry = new Entry();
+            entry.name = old.name(id);
+            if (old.dir(id)) {
+                describe(entry, read_attrs(dir.path.resolve(entry.name)));
+                entry.old = entry.kind == DIR ? id : -1;
+            } else {
+                entry.kind = old.kind(id);
+                entry.size = old.size(id);
+                entry.mtime = old.mtime(id);
+            }
+            result[i] = entry;
+        }
+        return result;
+    }
+
+    private static void describe(Entry entry, BasicFileAttributes attrs) {
+        if (attrs == null) {
+            entry.kind = OTHER;
+            return;
+        }
+        entry.mtime = attrs.lastModifiedTime().toMillis();
+        if (attrs.isDirectory()) {
+            entry.kind = DIR;
+        } else if (attrs.isRegularFile()) {
+            entry.kind = FILE;
+            entry.size = attrs.size();
+        } else {
+            entry.kind = OTHER;
+        }
+    }
+
+    // 不跟随符号链接
+    private static BasicFileAttributes read_attrs(Path path) {
+        Metrics.stat();
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    // 建立过程中的各列，按编号增长
+    private static class Builder {
+        int count;
+        byte[] kind = new byte[1024];
+        int[] parent = new int[1024];
+        int[] name = new int[1024];
+        int[] first = new int[1024];
+        int[] children = new int[1024];
+        long[] size = new long[1024];
+        long[] mtime = new long[1024];
+        private final HashMap<String, Integer> nameIds = new HashMap<>();
+        private final ByteArrayOutputStream names = new ByteArrayOutputStream();
+
+        int add(int parent_id, String name, byte kind, long size, long mtime) throws IOException {
+            if (this.count == this.kind.length) {
+                int capacity = this.count * 2;
+                if (capacity < 0 || (long) capacity * 8 > Integer.MAX_VALUE) {
+                    throw new IOException("项数超过索引的上限");
+                }
+                this.kind = Arrays.copyOf(this.kind, capacity);
+                this.parent = Arrays.copyOf(this.parent, capacity);
+                this.name = Arrays.copyOf(this.name, capacity);
+                this.first = Arrays.copyOf(this.first, capacity);
+                this.children = Arrays.copyOf(this.children, capacity);
+                this.size = Arrays.copyOf(this.size, capacity);
+                this.mtime = Arrays.copyOf(this.mtime, capacity);
+            }
+            int id = this.count++;
+            this.kind[id] = kind;
+            this.parent[id] = parent_id;
+            this.name[id] = name_offset(name);
+            this.size[id] = size;
+            this.mtime[id] = mtime;
+            return id;
+        }
+
+        // 相同的名称只存一份
+        private int name_offset(String name) throws IOException {
+            Integer offset = this.nameIds.get(name);
+            if (offset != null) {
+                return offset;
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF || this.names.size() + 2L + bytes.length > Integer.MAX_VALUE) {
+                throw new IOException("名称表超过索引的上限");
+            }
+            int at = this.names.size();
+            this.names.write(bytes.length >>> 8);
+            this.names.write(bytes.length);
+            this.names.write(bytes);
+            this.nameIds.put(name, at);
+            return at;
+        }
+
+        int[] files;
+        int[] dirs;
+        short[] depth;
+
+        // 子项的编号总比父项大，倒序一遍就把每棵子树的统计汇总到根
+        void aggregate() {
+            this.files = new int[this.count];
+            this.dirs = new int[this.count];
+            this.depth = new short[this.count];
+            Arrays.fill(this.depth, (short) 1);
+            for (int id = this.count - 1; id > 0; id--) {
+                int p = this.parent[id];
+                if (this.kind[id] == DIR) {
+                    this.dirs[p] += 1 + this.dirs[id];
+                    this.files[p] += this.files[id];
+                    this.size[p] += this.size[id];
+                    this.depth[p] = (short) Math.max(this.depth[p], this.depth[id] + 1);
+                } else {
+                    if (this.kind[id] == FILE) {
+                        this.files[p] += 1;
+                        this.size[p] += this.size[id];
+                    }
+                    this.depth[p] = (short) Math.max(this.depth[p], 2);
+                }
+            }
+        }
+
+        void write(Path file, Path root, long built) throws IOException {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            byte[] root_bytes = root.toString().getBytes(StandardCharsets.UTF_8);
+            int n = this.count;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate((int) align(28 + root_bytes.length));
+                header.putInt(MAGIC).putInt(n).putInt(this.nameIds.size()).putInt(this.names.size()).putLong(built);
+                header.putInt(root_bytes.length).put(root_bytes);
+                header.position(header.capacity());
+                write_all(out, header.flip());
+
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                for (int i = 0; i < n; i++) {
+                    put(out, buffer, 1).put(this.kind[i]);
+                }
+                pad(out, buffer);
+                for (int[] column : new int[][] {this.parent, this.name, this.first, this.children}) {
+                    for (int i = 0; i < n; i++) {
+                        put(out, buffer, 4).putInt(column[i]);
+                    }
+                    pad(out, buffer);
+                }
+                for (long[] column : new long[][] {this.size, this.mtime}) {
+                    for (int i = 0; i < n; i++) {
+                        put(out, buffer, 8).putLong(column[i]);
+                    }
+                    pad(out, buffer);
+                }
+                for (int[] column : new int[][] {this.files, this.dirs}) {
+                    for (int i = 0; i < n; i++) {
+                        put(out, buffer, 4).putInt(column[i]);
+                    }
+                    pad(out, buffer);
+                }
+                for (int i = 0; i < n; i++) {
+                    put(out, buffer, 2).putShort(this.depth[i]);
+                }
+                pad(out, buffer);
+                write_all(out, buffer.flip());
+                write_all(out, ByteBuffer.wrap(this.names.toByteArray()));
+                out.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // 缓冲区放不下 bytes 个字节时先写出
+        private static ByteBuffer put(FileChannel out, ByteBuffer buffer, int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                write_all(out, buffer.flip());
+                buffer.clear();
+            }
+            return buffer;
+        }
+
+        // 下一段从 8 字节边界开始；缓冲区大小是 8 的倍数，写出的总长和缓冲区内的位置同余
+        private static void pad(FileChannel out, ByteBuffer buffer) throws IOException {
+            while ((buffer.position() & 7) != 0) {
+                put(out, buffer, 1).put((byte) 0);
+            }
+        }
+
+        private static void write_all(FileChannel out, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+}
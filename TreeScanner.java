@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+/*
+单次遍历的目录树统计引擎。
+原来的 getMaxDepth、getDirNum、getFileNum、getAllFileSize 各自递归一遍子树，每一层都要重复 listFiles() 和 isDirectory()/length()。
+这里一次遍历同时算出四项统计，每个节点只读取一次属性。
+给定 ForkJoinPool 时为并行模式：每个子文件夹拆成一个任务，由工作窃取调度，最后合并各子树的统计，结果与顺序模式完全一致。
+给定 StatsCache 时，修改时间没有变化的文件夹直接使用缓存中的本层结果，不再列举，只需读取子文件夹的属性。
+给定 TreeWatcher 时，被监视的文件夹直接读取内存模型中已经算好的汇总，完全不访问磁盘。
+walk_files 用同样的列举方式逐个交出子树中的普通文件，供 dup、find 等需要文件清单的命令使用；find 找够结果后可以让遍历提前停下。
+*/
+class TreeScanner {
+
+    // 为 null 表示顺序模式
+    private final ForkJoinPool pool;
+    // 为 null 表示不使用缓存
+    private final StatsCache cache;
+    // 为 null 表示没有开启监视模式
+    private final TreeWatcher watcher;
+
+    TreeScanner() {
+        this(null, null, null);
+    }
+
+    TreeScanner(ForkJoinPool pool, StatsCache cache, TreeWatcher watcher) {
+        this.pool = pool;
+        this.cache = cache;
+        this.watcher = watcher;
+    }
+
+    // 提交一个统计任务，调用方按自己的顺序取结果；顺序模式下直接算完
+    Future<TreeStats> submit(Path path, BasicFileAttributes attrs) {
+        if (this.pool == null) {
+            return CompletableFuture.completedFuture(scan(path, attrs));
+        }
+        return this.pool.submit(new ScanTask(path, attrs));
+    }
+
+    // 统计任意一个文件或文件夹，attrs 为 null 表示属性读取失败
+    TreeStats scan(Path path, BasicFileAttributes attrs) {
+        if (attrs == null) {
+            return new TreeStats();
+        }
+        if (attrs.isDirectory()) {
+            return scan_dir(path, attrs);
+        }
+        if (attrs.isRegularFile()) {
+            return TreeStats.of_file(attrs.size());
+        }
+        return new TreeStats();
+    }
+
+    TreeStats scan_dir(Path dir, BasicFileAttributes attrs) {
+        TreeStats watched = watched_stats(dir);
+        if (watched != null) {
+            return watched;
+        }
+
+        DirLevel level = read_level(dir, attrs);
+        TreeStats stats = level.stats();
+
+        for (int i = 0; i < level.subdirs.size(); i++) {
+            Path child = dir.resolve(level.subdirs.get(i));
+            BasicFileAttributes child_attrs = subdir_attrs(level, i, child);
+            if (child_attrs == null || !child_attrs.isDirectory()) {
+                stats.add_other();
+            } else {
+                stats.add_dir(scan_dir(child, child_attrs));
+            }
+        }
+
+        return stats;
+    }
+
+    // 遍历子树中的每个普通文件，并行模式下 sink 会被多个线程同时调用
+    void walk_files(Path dir, BiConsumer<Path, BasicFileAttributes> sink) {
+        walk_files(dir, sink, () -> false);
+    }
+
+    // stop 返回 true 之后不再交出文件，也不再列举新的文件夹
+    void walk_files(Path dir, BiConsumer<Path, BasicFileAttributes> sink, BooleanSupplier stop) {
+        if (this.pool == null) {
+            walk_level(dir, sink, stop, null);
+        } else {
+            this.pool.invoke(new WalkTask(dir, sink, stop));
+        }
+    }
+
+    // 列举一层：文件交给 sink，子文件夹顺序模式下直接递归，并行模式下放进 subtasks
+    private void walk_level(Path dir, BiConsumer<Path, BasicFileAttributes> sink, BooleanSupplier stop, ArrayList<WalkTask> subtasks) {
+        if (stop.getAsBoolean()) {
+            return;
+        }
+        Metrics.list();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                if (stop.getAsBoolean()) {
+                    return;
+                }
+                BasicFileAttributes attrs = read_attrs(child);
+                if (attrs == null) {
+                    continue;
+                }
+                if (attrs.isRegularFile()) {
+                    sink.accept(child, attrs);
+                } else if (attrs.isDirectory()) {
+                    if (subtasks == null) {
+                        walk_level(child, sink, stop, null);
+                    } else {
+                        WalkTask task = new WalkTask(child, sink, stop);
+                        task.fork();
+                        subtasks.add(task);
+                    }
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            // 无权限访问的文件夹跳过
+        }
+    }
+
+    // 监视模式下模型里有这个文件夹时直接返回汇总
+    private TreeStats watched_stats(Path dir) {
+        return this.watcher == null ? null : this.watcher.stats(dir);
+    }
+
+    // 得到一个文件夹的本层结果：缓存命中则直接返回，否则列举一次并写回缓存
+    private DirLevel read_level(Path dir, BasicFileAttributes attrs) {
+        long mtime = attrs.lastModifiedTime().toMillis();
+        String key = dir.toString();
+
+        if (this.cache != null) {
+            DirLevel cached = this.cache.get(key, mtime);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        DirLevel level = list_level(dir);
+        level.mtime = mtime;
+        if (this.cache != null) {
+            this.cache.put(key, level);
+        }
+        return level;
+    }
+
+    static DirLevel list_level(Path dir) {
+        DirLevel level = new DirLevel();
+        level.subdirAttrs = new ArrayList<>();
+
+        Metrics.list();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                BasicFileAttributes attrs = read_attrs(child);
+                if (attrs == null) {
+                    level.other = true;
+                } else if (attrs.isDirectory()) {
+                    level.subdirs.add(child.getFileName().toString());
+                    level.subdirAttrs.add(attrs);
+                } else if (attrs.isRegularFile()) {
+                    level.fileNum += 1;
+                    level.size += attrs.size();
+                } else {
+                    level.other = true;
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            // 无权限访问，和 listFiles() 返回 null 一样按空文件夹处理
+        }
+
+        return level;
+    }
+
+    private static BasicFileAttributes subdir_attrs(DirLevel level, int index, Path child) {
+        if (level.subdirAttrs != null) {
+            return level.subdirAttrs.get(index);
+        }
+        return read_attrs(child);
+    }
+
+    // 读取一次属性，失败（例如失效的符号链接）时返回 null
+    static BasicFileAttributes read_attrs(Path path) {
+        Metrics.stat();
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    // 并行模式下的一个子树任务：本层的文件直接累加，每个子文件夹 fork 成新任务
+    private class ScanTask extends RecursiveTask<TreeStats> {
+        private final Path path;
+        private final BasicFileAttributes attrs;
+
+        ScanTask(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected TreeStats compute() {
+            if (this.attrs == null || !this.attrs.isDirectory()) {
+                return scan(this.path, this.attrs);
+            }
+
+            TreeStats watched = watched_stats(this.path);
+            if (watched != null) {
+                return watched;
+            }
+
+            DirLevel level = read_level(this.path, this.attrs);
+            TreeStats stats = level.stats();
+            ArrayList<ScanTask> subtasks = new ArrayList<>();
+
+            for (int i = 0; i < level.subdirs.size(); i++) {
+                Path child = this.path.resolve(level.subdirs.get(i));
+                BasicFileAttributes child_attrs = subdir_attrs(level, i, child);
+                if (child_attrs == null || !child_attrs.isDirectory()) {
+                    stats.add_other();
+                } else {
+                    ScanTask task = new ScanTask(child, child_attrs);
+                    task.fork();
+                    subtasks.add(task);
+                }
+            }
+
+            // 后 fork 的先 join，尽量在本线程直接执行还没被窃取的任务
+            for (int i = subtasks.size() - 1; i >= 0; i--) {
+                stats.add_dir(subtasks.get(i).join());
+            }
+
+            return stats;
+        }
+    }
+
+    // 并行遍历文件的子树任务
+    private class WalkTask extends RecursiveTask<Void> {
+        private final Path dir;
+        private final BiConsumer<Path, BasicFileAttributes> sink;
+        private final BooleanSupplier stop;
+
+        WalkTask(Path dir, BiConsumer<Path, BasicFileAttributes> sink, BooleanSupplier stop) {
+            this.dir = dir;
+            this.sink = sink;
+            this.stop = stop;
+        }
+
+        @Override
+        protected Void compute() {
+            ArrayList<WalkTask> subtasks = new ArrayList<>();
+            walk_level(this.dir, this.sink, this.stop, subtasks);
+            for (int i = subtasks.size() - 1; i >= 0; i--) {
+                subtasks.get(i).join();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+// 一个文件或文件夹的统计结果：最大深度、内含文件夹总数、内含文件总数、内含文件大小之和
+class TreeStats {
+
+    int depth = 1;
+    long dirNum;
+    long fileNum;
+    long size;
+
+    // 单个文件的统计结果
+    static TreeStats of_file(long size) {
+        TreeStats stats = new TreeStats();
+        stats.fileNum = 1;
+        stats.size = size;
+        return stats;
+    }
+
+    // 把一个直接子文件计入当前文件夹
+    void add_file(long file_size) {
+        this.depth = Math.max(this.depth, 2);
+        this.fileNum += 1;
+        this.size += file_size;
+    }
+
+    // 把一个直接子文件夹（及其整棵子树）计入当前文件夹
+    void add_dir(TreeStats child) {
+        this.depth = Math.max(this.depth, child.depth + 1);
+        this.dirNum += 1 + child.dirNum;
+        this.fileNum += child.fileNum;
+        this.size += child.size;
+    }
+
+    // 既不是文件也不是文件夹的子项（无法读取属性、特殊文件等）只影响深度
+    void add_other() {
+        this.depth = Math.max(this.depth, 2);
+    }
+}
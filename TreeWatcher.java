@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/*
+用 WatchService 维护当前工作目录整棵树的内存统计模型。
+每个文件夹注册一个 WatchKey，并保存它的本层列举结果（DirLevel）和整棵子树的汇总（按需计算后记住）。
+收到某个文件夹的增、删、改事件时只重新列举这一层，新出现的子文件夹补注册，消失的子文件夹整棵移除，
+再把这一层到根的汇总作废；事件溢出（OVERFLOW）时只重新扫描这个文件夹下的子树。
+cd 时保留新根下面已经监视的部分，只补上缺少的、移除不再需要的。
+*/
+class TreeWatcher {
+
+    private static class Node {
+        DirLevel level;
+        WatchKey key;
+        // 整棵子树的汇总，为 null 表示需要重新计算
+        TreeStats total;
+    }
+
+    private final WatchService service;
+    private final HashMap<Path, Node> nodes = new HashMap<>();
+    private final HashMap<WatchKey, Path> keys = new HashMap<>();
+    private final Thread thread;
+    private Path root;
+
+    TreeWatcher(Path root) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        try {
+            synchronized (this) {
+                this.root = root;
+                build(root);
+            }
+        } catch (RuntimeException | Error e) {
+            this.service.close();
+            throw e;
+        }
+        this.thread = new Thread(this::poll_loop, "minidos-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    Path root() {
+        return this.root;
+    }
+
+    synchronized int watched_num() {
+        return this.nodes.size();
+    }
+
+    // 工作目录变化：移除新根以外的部分，再补上新根下还没有监视的文件夹
+    synchronized void move_root(Path new_root) {
+        if (new_root.equals(this.root)) {
+            return;
+        }
+
+        ArrayList<Path> outside = new ArrayList<>();
+        for (Path path : this.nodes.keySet()) {
+            if (!path.startsWith(new_root)) {
+                outside.add(path);
+            }
+        }
+        for (Path path : outside) {
+            remove_node(path);
+        }
+
+        this.root = new_root;
+        build(new_root);
+    }
+
+    // 模型中有这个文件夹时直接返回子树汇总，否则返回 null，由调用方自己遍历
+    synchronized TreeStats stats(Path dir) {
+        Node node = this.nodes.get(dir);
+        if (node == null) {
+            return null;
+        }
+        return total(dir, node);
+    }
+
+    void close() {
+        try {
+            this.service.close();
+        } catch (IOException e) {
+            // 关闭失败不影响退出监视模式
+        }
+        synchronized (this) {
+            this.nodes.clear();
+            this.keys.clear();
+        }
+    }
+
+    private TreeStats total(Path dir, Node node) {
+        if (node.total != null) {
+            return node.total;
+        }
+
+        TreeStats stats = node.level.stats();
+        for (String name : node.level.subdirs) {
+            Path child = dir.resolve(name);
+            Node child_node = this.nodes.get(child);
+            if (child_node == null) {
+                // 注册失败而没有进入模型的子树，现场遍历
+                BasicFileAttributes attrs = TreeScanner.read_attrs(child);
+                if (attrs == null || !attrs.isDirectory()) {
+                    stats.add_other();
+                } else {
+                    stats.add_dir(new TreeScanner().scan_dir(child, attrs));
+                }
+            } else {
+                stats.add_dir(total(child, child_node));
+            }
+        }
+
+        node.total = stats;
+        return stats;
+    }
+
+    /*
+    注册并列举一个文件夹及其子树，已经在模型中的文件夹跳过；先注册再列举，列举期间的改动也不会漏掉。
+    注册失败（超过 inotify 的监视数上限、文件夹刚被删除、没有权限）的文件夹不进入模型，total 时现场遍历。
+    key 已经失效的文件夹（被删除后又建了同名的）先整棵移除，再重新注册。
+    */
+    private void build(Path dir) {
+        Node old = this.nodes.get(dir);
+        if (old != null && !old.key.isValid()) {
+            remove_node(dir);
+        }
+        if (this.nodes.containsKey(dir)) {
+            for (String name : this.nodes.get(dir).level.subdirs) {
+                build(dir.resolve(name));
+            }
+            return;
+        }
+
+        Node node = new Node();
+        try {
+            node.key = dir.register(this.service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | SecurityException e) {
+            return;
+        }
+        this.keys.put(node.key, dir);
+        node.level = TreeScanner.list_level(dir).without_attrs();
+        this.nodes.put(dir, node);
+
+        for (String name : node.level.subdirs) {
+            build(dir.resolve(name));
+        }
+    }
+
+    // 重新列举一层，对比前后的子文件夹集合
+    private void relist(Path dir) {
+        Node node = this.nodes.get(dir);
+        if (node == null) {
+            return;
+        }
+
+        // 本层已经换成新的列举结果，不论后面怎样结束，汇总都要作废
+        try {
+            DirLevel level = TreeScanner.list_level(dir).without_attrs();
+            for (String name : node.level.subdirs) {
+                if (!level.subdirs.contains(name)) {
+                    remove_node(dir.resolve(name));
+                }
+            }
+            node.level = level;
+            for (String name : level.subdirs) {
+                build(dir.resolve(name));
+            }
+        } finally {
+            invalidate(dir);
+        }
+    }
+
+    // 事件溢出：这个文件夹下的每一层都重新列举
+    private void rescan(Path dir) {
+        Node node = this.nodes.get(dir);
+        if (node == null) {
+            return;
+        }
+        relist(dir);
+        for (String name : new ArrayList<>(node.level.subdirs)) {
+            rescan(dir.resolve(name));
+        }
+    }
+
+    // key 失效的文件夹整棵移除；还在新根下、父文件夹也在模型中时重新注册，不存在了就由父文件夹的删除事件处理
+    private void reregister(Path dir) {
+        remove_node(dir);
+        if (dir.equals(this.root) || this.nodes.containsKey(dir.getParent())) {
+            build(dir);
+        }
+        invalidate(dir.getParent());
+    }
+
+    // 移除一个文件夹及其整棵子树
+    private void remove_node(Path dir) {
+        Node node = this.nodes.remove(dir);
+        if (node == null) {
+            return;
+        }
+        node.key.cancel();
+        this.keys.remove(node.key);
+        for (String name : node.level.subdirs) {
+            remove_node(dir.resolve(name));
+        }
+    }
+
+    // 一个文件夹变化后，它和它到根的所有祖先的汇总都要作废
+    private void invalidate(Path dir) {
+        for (Path p = dir; p != null; p = p.getParent()) {
+            Node node = this.nodes.get(p);
+            if (node == null) {
+                break;
+            }
+            node.total = null;
+        }
+    }
+
+    private void poll_loop() {
+        try {
+            while (true) {
+                WatchKey key = this.service.take();
+                // 同一批就绪的事件合并处理，同一文件夹只重新列举一次
+                LinkedHashSet<WatchKey> ready = new LinkedHashSet<>();
+                ready.add(key);
+                for (WatchKey more = this.service.poll(); more != null; more = this.service.poll()) {
+                    ready.add(more);
+                }
+                handle(ready);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 退出监视模式
+        }
+    }
+
+    private synchronized void handle(LinkedHashSet<WatchKey> ready) {
+        LinkedHashSet<Path> changed = new LinkedHashSet<>();
+        LinkedHashSet<Path> overflowed = new LinkedHashSet<>();
+
+        LinkedHashSet<Path> stale = new LinkedHashSet<>();
+
+        for (WatchKey key : ready) {
+            Path dir = this.keys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (dir == null) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflowed.add(dir);
+                } else {
+                    changed.add(dir);
+                }
+            }
+            // 文件夹本身被删除时 key 失效；可能已经建了同名的新文件夹，要重新注册
+            if (!key.reset() && dir != null) {
+                stale.add(dir);
+            }
+        }
+
+        for (Path dir : stale) {
+            reregister(dir);
+        }
+        for (Path dir : overflowed) {
+            rescan(dir);
+        }
+        for (Path dir : changed) {
+            if (!overflowed.contains(dir)) {
+                relist(dir);
+            }
+        }
+    }
+}
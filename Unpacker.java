@@ -0,0 +1,488 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+解开 zip 或 tar.gz。
+先列一遍压缩包里的各项，和拷贝预检一样找出目的地里会被覆盖的文件和文件夹、文件互相顶替的冲突，以及越出目标文件夹的路径；
+zip 的清单直接读中央目录，tar.gz 没有目录，要解压一遍但不写盘。
+通过检查后再从头顺序解压，边读边写。deflate 流只能顺序解压，这一步不并行。
+zip 解压时同样按中央目录逐项读，和预检看到的是同一份清单（本地头可以和中央目录不一致）；
+不覆盖时目标文件用 CREATE_NEW 创建，预检之后才出现的同名文件也不会被改掉。
+tar 里的符号链接、硬链接和设备文件不解出，只计数。
+*/
+class Unpacker {
+
+    private static final int TAR_BLOCK = 512;
+
+    // 压缩包里的一项
+    static class Entry {
+        String name;
+        boolean dir;
+        long size;
+        // 毫秒，未知时为 -1
+        long mtime = -1;
+        // POSIX 权限，未知时为 -1
+        int mode = -1;
+        boolean other;
+    }
+
+    // 预检结果
+    static class Plan {
+        final ArrayList<Path> overwrites = new ArrayList<>();
+        final ArrayList<Path> clashes = new ArrayList<>();
+        final ArrayList<String> outside = new ArrayList<>();
+        long files;
+        long bytes;
+    }
+
+    private interface EntryReader extends AutoCloseable {
+        // 下一项，没有时返回 null
+        Entry next() throws IOException;
+
+        // 当前项的内容
+        InputStream content() throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    static Plan plan(Path archive, Path dest) throws IOException {
+        Plan plan = new Plan();
+        // 已知不存在的文件夹，其下的项不必再读属性
+        HashSet<Path> missing = new HashSet<>();
+        // 已经确认不是符号链接的文件夹
+        HashSet<Path> real_dirs = new HashSet<>();
+        try (EntryReader reader = open(archive)) {
+            for (Entry entry = reader.next(); entry != null; entry = reader.next()) {
+                if (!entry.other) {
+                    check(plan, missing, real_dirs, dest, entry);
+                }
+            }
+        }
+        return plan;
+    }
+
+    private static void check(Plan plan, Set<Path> missing, Set<Path> real_dirs, Path dest, Entry entry) {
+        Path target = target(dest, entry.name);
+        if (target == null || through_link(dest, target, missing, real_dirs)) {
+            plan.outside.add(entry.name);
+            return;
+        }
+        if (!entry.dir) {
+            plan.files++;
+            plan.bytes += entry.size;
+        }
+        if (target.equals(dest)) {
+            return;
+        }
+
+        BasicFileAttributes attrs = null;
+        if (!missing.contains(target.getParent())) {
+            Metrics.stat();
+            try {
+                attrs = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException | SecurityException e) {
+                // 不存在
+            }
+        }
+        if (attrs == null) {
+            if (entry.dir) {
+                missing.add(target);
+            }
+        } else if (attrs.isDirectory() != entry.dir) {
+            plan.clashes.add(target);
+        } else if (!entry.dir) {
+            plan.overwrites.add(target);
+        }
+    }
+
+    // 项在目标文件夹下的路径，绝对路径或含 .. 越出目标文件夹时返回 null
+    private static Path target(Path dest, String name) {
+        if (name.startsWith("/") || name.startsWith("\\")) {
+            return null;
+        }
+        Path target = dest.resolve(name).normalize();
+        return target.startsWith(dest) ? target : null;
+    }
+
+    /*
+    目标文件夹里已有的符号链接会把写入带到目标文件夹外面（例如 link/x，link 指向别处），覆盖时还会改掉那里的文件。
+    路径检查只看字面，所以从项本身往上到目标文件夹，任何一级已经是符号链接就不写。
+    missing 中的文件夹不存在，其下不必再查；real_dirs 记下已经确认的文件夹，同一文件夹下的项只查一次。
+    */
+    private static boolean through_link(Path dest, Path target, Set<Path> missing, Set<Path> real_dirs) {
+        ArrayList<Path> checked = new ArrayList<>();
+        for (Path path = target; path != null && !path.equals(dest); path = path.getParent()) {
+            if (real_dirs.contains(path) || missing.contains(path)) {
+                break;
+            }
+            Metrics.stat();
+            if (Files.isSymbolicLink(path)) {
+                return true;
+            }
+            if (path != target) {
+                checked.add(path);
+            }
+        }
+        real_dirs.addAll(checked);
+        return false;
+    }
+
+    /*
+    解压到 dest，返回没有解出的链接和特殊文件数；plan 之后路径上又出现的符号链接同样跳过。
+    overwrite 为 false 时遇到已有的文件就停下，本次解出的文件被压缩包里的同名项替换不算覆盖。
+    */
+    static long unpack(Path archive, Path dest, boolean overwrite, Progress progress) throws IOException {
+        long skipped = 0;
+        HashSet<Path> real_dirs = new HashSet<>();
+        HashSet<Path> created = new HashSet<>();
+        try (EntryReader reader = open(archive)) {
+            for (Entry entry = reader.next(); entry != null; entry = reader.next()) {
+                progress.check();
+                Path target = target(dest, entry.name);
+                if (entry.other || target == null || through_link(dest, target, Set.of(), real_dirs)) {
+                    skipped++;
+                    continue;
+                }
+                if (entry.dir) {
+                    Files.createDirectories(target);
+                    continue;
+                }
+
+                Files.createDirectories(target.getParent());
+                StandardOpenOption create = overwrite || created.contains(target) ? StandardOpenOption.CREATE : StandardOpenOption.CREATE_NEW;
+                long written = 0;
+                try (OutputStream out = Files.newOutputStream(target,
+                        create, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    created.add(target);
+                    byte[] buffer = new byte[64 * 1024];
+                    InputStream in = reader.content();
+                    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                        out.write(buffer, 0, n);
+                        written += n;
+                    }
+                } catch (FileAlreadyExistsException e) {
+                    throw new IOException("目的地已有同名文件，没有覆盖：" + target);
+                }
+                if (entry.mtime >= 0) {
+                    Files.setLastModifiedTime(target, FileTime.fromMillis(entry.mtime));
+                }
+                if (entry.mode >= 0) {
+                    set_mode(target, entry.mode);
+                }
+                Metrics.file();
+                progress.add_file(written);
+            }
+        }
+        return skipped;
+    }
+
+    private static void set_mode(Path target, int mode) {
+        Set<PosixFilePermission> permissions = new HashSet<>();
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            if ((mode & (0400 >> permission.ordinal())) != 0) {
+                permissions.add(permission);
+            }
+        }
+        try {
+            Files.setPosixFilePermissions(target, permissions);
+        } catch (IOException | UnsupportedOperationException e) {
+            // 不支持 POSIX 权限的文件系统保留默认权限
+        }
+    }
+
+    private static EntryReader open(Path archive) throws IOException {
+        if (Packer.is_zip(archive)) {
+            return new ZipReader(new ZipFile(archive.toFile(), StandardCharsets.UTF_8));
+        }
+        InputStream in = new BufferedInputStream(Files.newInputStream(archive), 1 << 16);
+        try {
+            return new TarReader(new GZIPInputStream(in, 1 << 16));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // 按中央目录的顺序逐项读 zip，内容从中央目录记下的位置解压
+    private static class ZipReader implements EntryReader {
+        private final ZipFile zip;
+        private final Enumeration<? extends ZipEntry> entries;
+        private ZipEntry current;
+        private InputStream in;
+
+        ZipReader(ZipFile zip) {
+            this.zip = zip;
+            this.entries = zip.entries();
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            close_content();
+            if (!this.entries.hasMoreElements()) {
+                return null;
+            }
+            this.current = this.entries.nextElement();
+            Entry entry = new Entry();
+            entry.name = this.current.getName();
+            entry.dir = this.current.isDirectory();
+            entry.size = Math.max(0, this.current.getSize());
+            entry.mtime = this.current.getTime();
+            return entry;
+        }
+
+        // 用到内容时才打开，预检不解压
+        @Override
+        public InputStream content() throws IOException {
+            if (this.in == null) {
+                this.in = this.zip.getInputStream(this.current);
+            }
+            return this.in;
+        }
+
+        private void close_content() throws IOException {
+            if (this.in != null) {
+                this.in.close();
+                this.in = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                close_content();
+            } finally {
+                this.zip.close();
+            }
+        }
+    }
+
+    /*
+    顺序读 tar：ustar 头，GNU 长名称（L）和 pax 扩展头（x）里的 path、size，GNU 的 base-256 大小。
+    每一项的内容只能在下一次 next 之前读，next 会跳过没读完的部分和补齐的零字节。
+    */
+    private static class TarReader implements EntryReader {
+        private final InputStream in;
+        private final byte[] header = new byte[TAR_BLOCK];
+        // 当前项还没读的字节数和之后补齐的字节数
+        private long remaining;
+        private long padding;
+
+        TarReader(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            String long_name = null;
+            long pax_size = -1;
+            while (true) {
+                skip(this.remaining + this.padding);
+                this.remaining = 0;
+                this.padding = 0;
+                if (!read_block(this.header)) {
+                    return null;
+                }
+                if (all_zero(this.header)) {
+                    return null;
+                }
+
+                long size = size(this.header);
+                char type = (char) this.header[156];
+                this.remaining = size;
+                this.padding = (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+
+                if (type == 'L') {
+                    long_name = trim(new String(read_all(size), StandardCharsets.UTF_8));
+                    continue;
+                }
+                if (type == 'x') {
+                    for (String record : new String(read_all(size), StandardCharsets.UTF_8).split("\n")) {
+                        int space = record.indexOf(' ');
+                        int equals = record.indexOf('=');
+                        if (space < 0 || equals < space) {
+                            continue;
+                        }
+                        String key = record.substring(space + 1, equals);
+                        String value = record.substring(equals + 1);
+                        if (key.equals("path")) {
+                            long_name = value;
+                        } else if (key.equals("size")) {
+                            pax_size = Long.parseLong(value);
+                        }
+                    }
+                    continue;
+                }
+                if (type == 'g') {
+                    continue;
+                }
+
+                Entry entry = new Entry();
+                entry.name = long_name != null ? long_name : ustar_name(this.header);
+                if (pax_size >= 0) {
+                    size = pax_size;
+                    this.remaining = size;
+                    this.padding = (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+                }
+                entry.size = size;
+                entry.dir = type == '5' || entry.name.endsWith("/");
+                entry.other = !entry.dir && type != '0' && type != 0 && type != '7';
+                entry.mtime = parse_octal(this.header, 136, 12) * 1000;
+                entry.mode = (int) (parse_octal(this.header, 100, 8) & 0777);
+                return entry;
+            }
+        }
+
+        @Override
+        public InputStream content() {
+            return new FilterInputStream(this.in) {
+                @Override
+                public int read() throws IOException {
+                    if (TarReader.this.remaining <= 0) {
+                        return -1;
+                    }
+                    int b = this.in.read();
+                    if (b < 0) {
+                        throw new EOFException("压缩包不完整");
+                    }
+                    TarReader.this.remaining--;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (TarReader.this.remaining <= 0) {
+                        return -1;
+                    }
+                    int n = this.in.read(b, off, (int) Math.min(len, TarReader.this.remaining));
+                    if (n < 0) {
+                        throw new EOFException("压缩包不完整");
+                    }
+                    TarReader.this.remaining -= n;
+                    return n;
+                }
+
+                @Override
+                public void close() {
+                    // 底层的流还要继续读下一项
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+
+        private byte[] read_all(long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("压缩包中的扩展头过大");
+            }
+            byte[] data = this.in.readNBytes((int) size);
+            if (data.length < size) {
+                throw new EOFException("压缩包不完整");
+            }
+            this.remaining = 0;
+            return data;
+        }
+
+        private void skip(long n) throws IOException {
+            while (n > 0) {
+                long skipped = this.in.skip(n);
+                if (skipped <= 0) {
+                    if (this.in.read() < 0) {
+                        throw new EOFException("压缩包不完整");
+                    }
+                    skipped = 1;
+                }
+                n -= skipped;
+            }
+        }
+
+        // 读一整块，流正好结束时返回 false
+        private boolean read_block(byte[] block) throws IOException {
+            int n = this.in.readNBytes(block, 0, TAR_BLOCK);
+            if (n == 0) {
+                return false;
+            }
+            if (n < TAR_BLOCK) {
+                throw new EOFException("压缩包不完整");
+            }
+            return true;
+        }
+
+        private static boolean all_zero(byte[] block) {
+            for (byte b : block) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String ustar_name(byte[] header) {
+            String name = field(header, 0, 100);
+            // 只有 POSIX ustar（magic 是 "ustar\0"）才有 prefix 字段，旧的 GNU 格式在这里放的是别的内容
+            String prefix = new String(header, 257, 6, StandardCharsets.US_ASCII).equals("ustar\0") ? field(header, 345, 155) : "";
+            return prefix.isEmpty() ? name : prefix + "/" + name;
+        }
+
+        private static String field(byte[] header, int offset, int length) {
+            int end = offset;
+            while (end < offset + length && header[end] != 0) {
+                end++;
+            }
+            return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        private static String trim(String name) {
+            int nul = name.indexOf('\0');
+            return nul < 0 ? name : name.substring(0, nul);
+        }
+
+        private static long size(byte[] header) {
+            // GNU 的 base-256 编码：首字节最高位为 1
+            if ((header[124] & 0x80) != 0) {
+                long size = 0;
+                for (int i = 125; i < 136; i++) {
+                    size = size << 8 | (header[i] & 0xFF);
+                }
+                return size;
+            }
+            return parse_octal(header, 124, 12);
+        }
+
+        private static long parse_octal(byte[] header, int offset, int length) {
+            int i = offset;
+            int end = offset + length;
+            while (i < end && header[i] == ' ') {
+                i++;
+            }
+            long value = 0;
+            for (; i < end && header[i] >= '0' && header[i] <= '7'; i++) {
+                value = value * 8 + (header[i] - '0');
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import minidos.bench.Op;
+
+/*
+把默认包里的引擎包装成 minidos.bench 的基准可以调用的 Op（JMH 不接受默认包里的基准类）。
+引擎的构造参数和 MiniDOS 里一致，同样可以用 -Dminidos.copy.* 配置。
+*/
+public final class BenchOps {
+
+    private BenchOps() {
+    }
+
+    // dir：统计整棵树，parallelism 为 0 时顺序统计
+    public static Op dir(Path root, int parallelism) {
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+        TreeScanner scanner = new TreeScanner(pool, null, null);
+        return new Op() {
+            public Object run() throws Exception {
+                return scanner.submit(root, TreeScanner.read_attrs(root)).get();
+            }
+
+            public void close() {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+        };
+    }
+
+    // copy：把 src 整棵拷成 des
+    public static Op copy(Path src, Path des, int workers, boolean keep_attrs) {
+        CopyEngine engine = copy_engine(workers);
+        CopyOptions options = new CopyOptions();
+        options.keepAttrs = keep_attrs;
+        return new Op() {
+            public Object run() throws Exception {
+                return engine.copy_tree(src, des, options);
+            }
+
+            public void close() {
+                engine.shutdown();
+            }
+        };
+    }
+
+    // move：在 a、b 之间来回移动；rename 为 false 时走跨文件系统的退路（保留属性拷贝后删除源）
+    public static Op move(Path a, Path b, boolean rename) {
+        CopyEngine engine = copy_engine(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        CopyOptions options = new CopyOptions();
+        options.keepAttrs = true;
+        DeleteEngine deleter = new DeleteEngine(ForkJoinPool.commonPool());
+        return new Op() {
+            private Path from = a;
+            private Path to = b;
+
+            public Object run() throws Exception {
+                Object result;
+                if (rename) {
+                    result = Files.move(this.from, this.to, StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    result = engine.copy_tree(this.from, this.to, options);
+                    check(deleter.delete(this.from));
+                }
+                Path t = this.from;
+                this.from = this.to;
+                this.to = t;
+                return result;
+            }
+
+            public void close() {
+                engine.shutdown();
+            }
+        };
+    }
+
+    // del：删除 path 整棵树，删不掉时报错
+    public static Op delete(Path path, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        DeleteEngine deleter = new DeleteEngine(pool);
+        return new Op() {
+            public Object run() throws Exception {
+                return check(deleter.delete(path));
+            }
+
+            public void close() {
+                pool.shutdown();
+            }
+        };
+    }
+
+    // 测量之外的清理，路径不存在时什么也不做
+    public static Op remove(Path path) {
+        DeleteEngine deleter = new DeleteEngine(ForkJoinPool.commonPool());
+        return () -> Files.exists(path) ? check(deleter.delete(path)) : null;
+    }
+
+    public static Op parse_size(String text) {
+        return () -> MiniDOS.parse_size(text);
+    }
+
+    private static CopyEngine copy_engine(int workers) {
+        return new CopyEngine(workers,
+                MiniDOS.size_property("minidos.copy.large", "1G"),
+                MiniDOS.size_property("minidos.copy.chunk", "64M"),
+                Integer.getInteger("minidos.copy.chunkThreads", Math.max(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    private static List<String> check(List<String> failed) throws IOException {
+        if (!failed.isEmpty()) {
+            throw new IOException("删除失败：" + failed.get(0));
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,58 @@
+package minidos.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// copy 的拷贝引擎：把整棵树拷到一个新目标，每次调用后删掉目标（删除不计时）
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"8"})
+    public int workers;
+
+    // 是否保留修改时间和权限，同 copy /a
+    @Param({"false"})
+    public boolean keepAttrs;
+
+    private Op copy;
+    private Op clean;
+
+    @Setup(Level.Trial)
+    public void setup(TreeState tree) {
+        this.copy = Ops.get("copy", tree.tree, tree.work.resolve("copy"), this.workers, this.keepAttrs);
+        this.clean = Ops.get("remove", tree.work.resolve("copy"));
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() throws Exception {
+        this.clean.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        this.copy.close();
+    }
+
+    @Benchmark
+    public Object copy() throws Exception {
+        return this.copy.run();
+    }
+}
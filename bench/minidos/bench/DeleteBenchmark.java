@@ -0,0 +1,55 @@
+package minidos.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// del 的删除引擎：每次调用前拷出一棵新树（不计时），再计时删除
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeleteBenchmark {
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Op prepare;
+    private Op delete;
+
+    @Setup(Level.Trial)
+    public void setup(TreeState tree) {
+        this.prepare = Ops.get("copy", tree.tree, tree.work.resolve("del"), 8, false);
+        this.delete = Ops.get("delete", tree.work.resolve("del"), this.parallelism);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        this.prepare.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        this.prepare.close();
+        this.delete.close();
+    }
+
+    @Benchmark
+    public Object delete() throws Exception {
+        return this.delete.run();
+    }
+}
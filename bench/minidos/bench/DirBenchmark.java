@@ -0,0 +1,47 @@
+package minidos.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// dir 的统计引擎：整棵树走一遍 TreeScanner，parallelism 为 0 时顺序统计（同不加 /p）
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirBenchmark {
+
+    @Param({"0", "4"})
+    public int parallelism;
+
+    private Op dir;
+
+    @Setup(Level.Trial)
+    public void setup(TreeState tree) {
+        this.dir = Ops.get("dir", tree.tree, this.parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        this.dir.close();
+    }
+
+    @Benchmark
+    public Object dir() throws Exception {
+        return this.dir.run();
+    }
+}
@@ -0,0 +1,54 @@
+package minidos.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+move 的两条路径，在 a、b 两个位置之间来回移动同一棵树的副本：
+rename=true   同一文件系统内的原子改名；
+rename=false  跨文件系统时的退路，保留属性拷贝后删除源。
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MoveBenchmark {
+
+    @Param({"true", "false"})
+    public boolean rename;
+
+    private Op move;
+
+    @Setup(Level.Trial)
+    public void setup(TreeState tree) throws Exception {
+        try (Op copy = Ops.get("copy", tree.tree, tree.work.resolve("move-a"), 8, true)) {
+            copy.run();
+        }
+        this.move = Ops.get("move", tree.work.resolve("move-a"), tree.work.resolve("move-b"), this.rename);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        this.move.close();
+    }
+
+    @Benchmark
+    public Object move() throws Exception {
+        return this.move.run();
+    }
+}
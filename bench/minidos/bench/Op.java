@@ -0,0 +1,11 @@
+package minidos.bench;
+
+// 一次被测操作。MiniDOS 的引擎都在默认包里，具名包不能直接引用，由默认包的 BenchOps 把它们包装成 Op
+public interface Op extends AutoCloseable {
+
+    Object run() throws Exception;
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,26 @@
+package minidos.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// 按名字取 BenchOps 里的工厂方法；只在 setup 阶段反射一次，计时的部分直接调用 Op
+final class Ops {
+
+    private Ops() {
+    }
+
+    static Op get(String name, Object... args) {
+        try {
+            for (Method method : Class.forName("BenchOps").getMethods()) {
+                if (method.getName().equals(name)) {
+                    return (Op) method.invoke(null, args);
+                }
+            }
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        throw new IllegalArgumentException("BenchOps 中没有 " + name);
+    }
+}
@@ -0,0 +1,132 @@
+package minidos.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+基准用的合成文件树，每次试验（trial）生成一次，结束后删除。形状由 shape 决定：
+wide  一个文件夹下 files 个小文件；
+deep  depth 层单链文件夹，files 个小文件平均分到每一层；
+small 每个文件夹 32 个 256 字节的文件、8 个子文件夹，共 files 个文件；
+huge  hugeCount 个 hugeSize 大小的文件。
+参数都可以用 JMH 的 -p 覆盖，例如 -p shape=deep -p depth=200；树生成在 -Dminidos.bench.dir 指定的目录下（默认系统临时目录）。
+*/
+@State(Scope.Benchmark)
+public class TreeState {
+
+    @Param({"wide", "deep", "small", "huge"})
+    public String shape;
+
+    @Param({"2000"})
+    public int files;
+
+    @Param({"64"})
+    public int depth;
+
+    @Param({"4K"})
+    public String smallSize;
+
+    @Param({"2"})
+    public int hugeCount;
+
+    @Param({"256M"})
+    public String hugeSize;
+
+    // 本次试验的工作目录，tree 是生成的源树，其它基准在 work 下放自己的拷贝
+    public Path work;
+    public Path tree;
+
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        Path base = Paths.get(System.getProperty("minidos.bench.dir", System.getProperty("java.io.tmpdir")));
+        this.work = Files.createTempDirectory(base, "minidos-bench-");
+        this.tree = this.work.resolve("tree");
+        Files.createDirectory(this.tree);
+
+        long small = size(this.smallSize);
+        switch (this.shape) {
+            case "wide":
+                write_files(this.tree, this.files, small);
+                break;
+            case "deep": {
+                Path dir = this.tree;
+                int per_level = Math.max(1, this.files / this.depth);
+                for (int i = 0; i < this.depth; i++) {
+                    write_files(dir, per_level, small);
+                    dir = Files.createDirectory(dir.resolve("d" + i));
+                }
+                break;
+            }
+            case "small":
+                write_bushy(this.tree, this.files, 256);
+                break;
+            case "huge":
+                write_files(this.tree, this.hugeCount, size(this.hugeSize));
+                break;
+            default:
+                throw new IllegalArgumentException("未知的树形状：" + this.shape);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void remove() throws Exception {
+        try (Op remove = Ops.get("remove", this.work)) {
+            remove.run();
+        }
+    }
+
+    // 广度优先地铺满一棵每层 8 叉、每个文件夹 32 个文件的树
+    private void write_bushy(Path root, int total, long size) throws IOException {
+        ArrayDeque<Path> queue = new ArrayDeque<>();
+        queue.add(root);
+        int left = total;
+        while (left > 0) {
+            Path dir = queue.poll();
+            int n = Math.min(32, left);
+            write_files(dir, n, size);
+            left -= n;
+            for (int i = 0; i < 8 && left > 0; i++) {
+                queue.add(Files.createDirectory(dir.resolve("d" + i)));
+            }
+        }
+    }
+
+    private void write_files(Path dir, int count, long size) throws IOException {
+        byte[] block = new byte[(int) Math.min(size, 1 << 20)];
+        for (int i = 0; i < count; i++) {
+            this.random.nextBytes(block);
+            try (OutputStream out = Files.newOutputStream(dir.resolve("f" + i))) {
+                for (long left = size; left > 0; left -= block.length) {
+                    out.write(block, 0, (int) Math.min(left, block.length));
+                }
+            }
+        }
+    }
+
+    private static long size(String text) throws IOException {
+        long size;
+        try (Op parse = Ops.get("parse_size", text)) {
+            size = (Long) parse.run();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("无效的大小：" + text);
+        }
+        return size;
+    }
+}